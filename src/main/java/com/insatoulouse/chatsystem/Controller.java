@@ -22,9 +22,10 @@ import com.insatoulouse.chatsystem.exception.ExceptionManager;
 import com.insatoulouse.chatsystem.exception.LogicalException;
 import com.insatoulouse.chatsystem.exception.TechnicalException;
 import com.insatoulouse.chatsystem.gui.ChatGUI;
+import com.insatoulouse.chatsystem.history.HistoryStore;
+import com.insatoulouse.chatsystem.history.SearchResult;
 import com.insatoulouse.chatsystem.model.*;
 import com.insatoulouse.chatsystem.model.network.Message;
-import com.insatoulouse.chatsystem.model.network.MessageAck;
 import com.insatoulouse.chatsystem.ni.ChatNI;
 import com.insatoulouse.chatsystem.utils.Sound;
 import org.apache.logging.log4j.LogManager;
@@ -34,6 +35,8 @@ import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Controller class
@@ -42,10 +45,15 @@ import java.util.ArrayList;
 public class Controller {
 
     private static final Logger l = LogManager.getLogger(Controller.class.getName());
-    private final ArrayList<RemoteUser> users = new ArrayList<RemoteUser>();
+
+    /**
+     * Maximum number of messages found by a search
+     */
+    private static final int SEARCH_RESULTS = 100;
+    private final PeerRegistry users = new PeerRegistry();
     private ChatGUI chatGUI;
     private ChatNI chatNI;
-    private LocalUser localUser;
+    private volatile LocalUser localUser;
 
     /**
      * Process connection
@@ -59,6 +67,7 @@ public class Controller {
             try {
                 LocalUser user = new LocalUser(username);
                 chatNI.start(bdr);
+                HistoryStore.getInstance().getSearchIndex();
                 chatNI.sendHello(user);
                 localUser = user;
                 chatGUI.startChat(user);
@@ -84,6 +93,10 @@ public class Controller {
         if (isConnected()) {
             try {
                 chatNI.sendGoodbye();
+                for (RemoteUser u : users.getUsers()) {
+                    u.getHistory().close();
+                }
+                HistoryStore.shutdown();
                 users.clear();
                 localUser = null;
                 if (chatNI != null)
@@ -106,12 +119,17 @@ public class Controller {
     public void processSendMessage(RemoteUser u, String mess) {
         assert u != null;
         if (isConnected()) {
+            MessageNetwork m = new MessageNetwork(MessageNetwork.OUT, u, mess);
+            m.setState(MessageNetwork.State.PENDING);
+            chatGUI.newMessage(m);
+            index(m);
             try {
-                chatNI.sendMessage(u, mess);
-                chatGUI.newMessage(new MessageNetwork(MessageNetwork.OUT, u, mess));
+                chatNI.sendMessage(u, m);
             } catch (TechnicalException e) {
+                processMessageFailed(m);
                 ExceptionManager.manage(e);
             } catch (LogicalException e) {
+                processMessageFailed(m);
                 ExceptionManager.manage(e);
             }
 
@@ -129,8 +147,14 @@ public class Controller {
      */
     public void processSendfile(RemoteUser to, File file) {
         l.trace("processSenfile");
-        this.chatNI.sendFile(to, file);
-        chatGUI.newMessage(new FileNetwork(MessageNetwork.OUT, to, file));
+        FileNetwork m = new FileNetwork(MessageNetwork.OUT, to, file);
+        chatGUI.newMessage(m);
+        try {
+            this.chatNI.sendFile(to, file);
+        } catch (LogicalException e) {
+            processMessageFailed(m);
+            ExceptionManager.manage(e);
+        }
     }
 
 
@@ -197,6 +221,7 @@ public class Controller {
 
     /**
      * Process Message
+     * Message is already acknowledged and duplicates are dropped by ChatNI
      * From Network
      *
      * @param message message received from network
@@ -207,14 +232,9 @@ public class Controller {
             RemoteUser u = getUserByAddr(addr);
             if (u != null) {
                 Sound.playSound(Sound.URL_SOUND_MSG);
-                chatGUI.newMessage(new MessageNetwork(u, message.getMessageData()));
-                try {
-                    this.chatNI.sendMessageAck(u, message.getMessageNumber());
-                } catch (TechnicalException e) {
-                    ExceptionManager.manage(e);
-                } catch (LogicalException e) {
-                    ExceptionManager.manage(e);
-                }
+                MessageNetwork m = new MessageNetwork(u, message.getMessageData());
+                chatGUI.newMessage(m);
+                index(m);
             }
         } else {
             l.debug("Invalid state : not connected, do nothing");
@@ -223,14 +243,27 @@ public class Controller {
 
     /**
      * Process MessageAck
-     * Not implemented
+     * Local message is delivered
+     * From Network
+     *
+     * @param m acknowledged message
+     */
+    public void processMessageAck(MessageNetwork m) {
+        m.setState(MessageNetwork.State.DELIVERED);
+        chatGUI.updateMessage(m);
+    }
+
+    /**
+     * Process message failure
+     * Local message was never acknowledged
+     * From Network
      *
-     * @param mess MessageAck
-     * @param addr ip
+     * @param m failed message
      */
-    public void processMessageAck(MessageAck mess, InetAddress addr) {
-        l.debug("Message ack not implemented");
-        // TODO implements message ack
+    public void processMessageFailed(MessageNetwork m) {
+        l.debug("Message failed : " + m);
+        m.setState(MessageNetwork.State.FAILED);
+        chatGUI.updateMessage(m);
     }
 
     /**
@@ -253,6 +286,22 @@ public class Controller {
         }
     }
 
+    /**
+     * Process search in history
+     * From GUI
+     *
+     * @param query words to find
+     * @return most recent messages containing every word
+     */
+    public List<SearchResult> processSearch(String query) {
+        try {
+            return HistoryStore.getInstance().getSearchIndex().search(query, SEARCH_RESULTS);
+        } catch (TechnicalException e) {
+            ExceptionManager.manage(e);
+            return Collections.emptyList();
+        }
+    }
+
     /**
      * Get Network broadcast address
      *
@@ -268,8 +317,8 @@ public class Controller {
      *
      * @return list of users
      */
-    public synchronized ArrayList<RemoteUser> getUsers() {
-        return users;
+    public List<RemoteUser> getUsers() {
+        return users.getUsers();
     }
 
     /**
@@ -306,9 +355,17 @@ public class Controller {
      * @param u user to add
      */
     private synchronized void addUser(RemoteUser u) {
-        l.debug("New user : " + u.toString());
-        users.add(u);
-        chatGUI.addUser(u);
+        if (users.add(u)) {
+            l.debug("New user : " + u.toString());
+            try {
+                u.getHistory().setArchive(HistoryStore.getInstance().open(u.getName()));
+            } catch (TechnicalException e) {
+                l.error("History of " + u.getName() + " won't be kept", e);
+            }
+            chatGUI.addUser(u);
+        } else {
+            l.error("Un utilisateur existe déjà : " + u);
+        }
     }
 
     /**
@@ -317,9 +374,24 @@ public class Controller {
      * @param u user to remove
      */
     private synchronized void removeUser(RemoteUser u) {
-        l.debug("Remove user : " + u.toString());
-        users.remove(u);
-        chatGUI.removeUser(u);
+        if (users.remove(u)) {
+            l.debug("Remove user : " + u.toString());
+            chatGUI.removeUser(u);
+            u.getHistory().close();
+        }
+    }
+
+    /**
+     * Queue a message for the search index
+     *
+     * @param m new message
+     */
+    private void index(MessageNetwork m) {
+        try {
+            HistoryStore.getInstance().getSearchIndex().add(m.getUser().getName(), m);
+        } catch (TechnicalException e) {
+            l.error("Fail to index message " + m, e);
+        }
     }
 
     /**
@@ -339,15 +411,8 @@ public class Controller {
      * @param addr ip address to test
      * @return remote user
      */
-    private synchronized RemoteUser getUserByAddr(InetAddress addr) {
-        RemoteUser ret = null;
-        for (RemoteUser u : users) {
-            if (u.getIp().equals(addr)) {
-                ret = u;
-                break;
-            }
-        }
-        return ret;
+    private RemoteUser getUserByAddr(InetAddress addr) {
+        return users.getByAddr(addr);
     }
 
     /**
@@ -356,15 +421,8 @@ public class Controller {
      * @param username username to test
      * @return remote user
      */
-    private synchronized RemoteUser getUserByUsername(String username) {
-        RemoteUser ret = null;
-        for (RemoteUser u : users) {
-            if (u.getName().equals(username)) {
-                ret = u;
-                break;
-            }
-        }
-        return ret;
+    private RemoteUser getUserByUsername(String username) {
+        return users.getByName(username);
     }
 
     /**
@@ -372,7 +430,7 @@ public class Controller {
      *
      * @return local user
      */
-    private synchronized User getLocalUser() {
+    private User getLocalUser() {
         return localUser;
     }
 
@@ -21,6 +21,7 @@ package com.insatoulouse.chatsystem.gui;
 import com.insatoulouse.chatsystem.model.LocalUser;
 import com.insatoulouse.chatsystem.model.MessageNetwork;
 import com.insatoulouse.chatsystem.model.RemoteUser;
+import com.insatoulouse.chatsystem.model.User;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -33,6 +34,10 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Main chat view
@@ -49,11 +54,11 @@ public class Chat {
      */
     private final ChatGUI chatGUI;
     /**
-     * ListModel of messagelist
+     * ListModel of messagelist, view of the current conversation
      *
      * @see this.messagelist
      */
-    private final DefaultListModel<MessageNetwork> messages = new DefaultListModel<MessageNetwork>();
+    private final MessageListModel messages = new MessageListModel();
     /**
      * ListModel of userlist
      *
@@ -164,12 +169,16 @@ public class Chat {
         });
 
         messagelist.setModel(messages);
+        messagelist.setUI(new MessageListUI(messages));
         messagelist.setCellRenderer(new ListCellRenderer<MessageNetwork>() {
             private final MessageRow row = new MessageRow();
 
             @Override
             public Component getListCellRendererComponent(JList<? extends MessageNetwork> list, MessageNetwork value, int index, boolean isSelected, boolean cellHasFocus) {
                 row.setTextMessage(value);
+                if (messages.needsHeight(index)) {
+                    messages.setHeight(index, row.measure(messages.getWidth()));
+                }
                 return row.getPanel();
             }
         });
@@ -229,10 +238,7 @@ public class Chat {
                 l.trace("Switch chat to " + u.getName());
 
                 currentChatuser = u;
-                messages.removeAllElements();
-                for (MessageNetwork m : u.getMessages()) {
-                    messages.addElement(m);
-                }
+                messages.setUser(u);
                 setTo(u.getName());
                 userlist.setSelectedValue(u, true);
             }
@@ -248,7 +254,7 @@ public class Chat {
         messageField.setEnabled(false);
         send.setEnabled(false);
         setTo("");
-        messages.removeAllElements();
+        messages.setUser(null);
     }
 
     /**
@@ -302,16 +308,69 @@ public class Chat {
      * @param m incoming message
      */
     public void newMessage(MessageNetwork m) {
-        if (m.getUser().equals(currentChatuser)) {
-            messages.addElement(m);
+        newMessages(Collections.singletonList(m));
+    }
+
+    /**
+     * New messages, list is scrolled once
+     *
+     * @param list incoming messages, in order
+     */
+    public void newMessages(Collection<MessageNetwork> list) {
+        for (MessageNetwork m : list) {
+            if (m.getUser().equals(currentChatuser)) {
+                messages.refresh();
+                break;
+            }
         }
-        userlist.repaint();
+        repaintUsers(list);
         int lastIndex = messages.getSize() - 1;
         if (lastIndex >= 0) {
             messagelist.ensureIndexIsVisible(lastIndex);
         }
     }
 
+    /**
+     * Repaint rows of the users owning messages, not the whole user list
+     *
+     * @param list new messages
+     */
+    private void repaintUsers(Collection<MessageNetwork> list) {
+        Set<User> repainted = new HashSet<User>();
+        for (MessageNetwork m : list) {
+            if (repainted.add(m.getUser())) {
+                int index = users.indexOf(m.getUser());
+                Rectangle bounds = (index >= 0) ? userlist.getCellBounds(index, index) : null;
+                if (bounds != null) {
+                    userlist.repaint(bounds);
+                }
+            }
+        }
+    }
+
+    /**
+     * Refresh a message of the list
+     *
+     * @param m updated message
+     */
+    public void updateMessage(MessageNetwork m) {
+        updateMessages(Collections.singletonList(m));
+    }
+
+    /**
+     * Refresh messages of the list, list is repainted once
+     *
+     * @param list updated messages
+     */
+    public void updateMessages(Collection<MessageNetwork> list) {
+        for (MessageNetwork m : list) {
+            if (m.getUser().equals(currentChatuser)) {
+                messagelist.repaint();
+                return;
+            }
+        }
+    }
+
     /**
      * Get MainPanel
      *
@@ -21,6 +21,7 @@ package com.insatoulouse.chatsystem.gui;
 import com.insatoulouse.chatsystem.Controller;
 import com.insatoulouse.chatsystem.exception.ExceptionManager;
 import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.history.SearchResult;
 import com.insatoulouse.chatsystem.model.LocalUser;
 import com.insatoulouse.chatsystem.model.MessageNetwork;
 import com.insatoulouse.chatsystem.model.RemoteUser;
@@ -28,20 +29,27 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.swing.*;
+import java.awt.*;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.io.File;
 import java.net.InetAddress;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 /**
  * ChatGUI class
  * It's a facade of Graphic User Interface
  * Class communicate with a Controller
+ * Updates from network are applied on the Swing thread by a GuiDispatcher, callers don't wait
  */
 public class ChatGUI implements WindowListener {
 
     private final static String TITLE = "Super ChatSystem";
+    /**
+     * Command searching words in history : /search words
+     */
+    private final static String SEARCH = "/search ";
     private static final Logger l = LogManager.getLogger(ChatGUI.class.getName());
     /**
      * Controller
@@ -54,7 +62,11 @@ public class ChatGUI implements WindowListener {
     /**
      * Chat view
      */
-    private Chat chat;
+    private volatile Chat chat;
+    /**
+     * Updates of chat view, from any thread
+     */
+    private final GuiDispatcher dispatcher = new GuiDispatcher(this);
     /**
      * Login view
      */
@@ -92,7 +104,26 @@ public class ChatGUI implements WindowListener {
      */
     public void sendMessage(RemoteUser currentChatuser, String text) {
         l.trace("Send message to " + currentChatuser.getName() + " : " + text);
-        if (text.contains("/flood")) {
+        if (text.startsWith(SEARCH)) {
+            final String query = text.substring(SEARCH.length()).trim();
+            new SwingWorker<List<SearchResult>, Void>() {
+                @Override
+                protected List<SearchResult> doInBackground() {
+                    return controller.processSearch(query);
+                }
+
+                @Override
+                protected void done() {
+                    try {
+                        showSearchResults(query, get());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        l.error("Fail to search " + query, e);
+                    }
+                }
+            }.execute();
+        } else if (text.contains("/flood")) {
             for (int i = 0; i < 500; i++) {
                 controller.processSendMessage(currentChatuser, text.replace("/flood", ""));
             }
@@ -101,6 +132,25 @@ public class ChatGUI implements WindowListener {
         }
     }
 
+    /**
+     * Show messages found by a search
+     *
+     * @param query   searched words
+     * @param results messages found
+     */
+    private void showSearchResults(String query, List<SearchResult> results) {
+        if (results.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, "Aucun message trouvé pour : " + query,
+                    "Recherche", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        JList<SearchResult> list = new JList<SearchResult>(results.toArray(new SearchResult[results.size()]));
+        JScrollPane scroll = new JScrollPane(list);
+        scroll.setPreferredSize(new Dimension(500, 300));
+        JOptionPane.showMessageDialog(frame, scroll, "Recherche : " + query + " (" + results.size() + ")",
+                JOptionPane.PLAIN_MESSAGE);
+    }
+
     /**
      * Send hello to one network (chose with broadcast)
      *
@@ -132,11 +182,17 @@ public class ChatGUI implements WindowListener {
      */
     public void newMessage(MessageNetwork messageNetwork) {
         l.trace("New message to GUI " + messageNetwork.toString());
-        if (chat != null) {
-            chat.newMessage(messageNetwork);
-        } else {
-            l.error("Invalid state, chat panel is null.");
-        }
+        dispatcher.newMessage(messageNetwork);
+    }
+
+    /**
+     * Delivery state of a message changed
+     *
+     * @param messageNetwork updated message
+     */
+    public void updateMessage(MessageNetwork messageNetwork) {
+        l.trace("Update message on GUI " + messageNetwork.toString());
+        dispatcher.updateMessage(messageNetwork);
     }
 
     /**
@@ -158,11 +214,7 @@ public class ChatGUI implements WindowListener {
      */
     public void addUser(RemoteUser u) {
         l.trace("Add user " + u.toString());
-        if (chat != null) {
-            chat.addUser(u);
-        } else {
-            l.error("Invalid state, chat panel is null.");
-        }
+        dispatcher.addUser(u);
     }
 
     /**
@@ -172,11 +224,7 @@ public class ChatGUI implements WindowListener {
      */
     public void removeUser(RemoteUser u) {
         l.trace("Remove user " + u);
-        if (chat != null) {
-            chat.removeUser(u);
-        } else {
-            l.error("Invalid state, chat panel is null.");
-        }
+        dispatcher.removeUser(u);
     }
 
     /**
@@ -190,6 +238,15 @@ public class ChatGUI implements WindowListener {
         controller.processSendfile(u, file);
     }
 
+    /**
+     * Get chat view, null before connection
+     *
+     * @return chat view
+     */
+    Chat getChat() {
+        return chat;
+    }
+
     public List<RemoteUser> getRemoteUser() {
         return controller.getUsers();
     }
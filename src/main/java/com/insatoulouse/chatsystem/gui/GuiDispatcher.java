@@ -0,0 +1,160 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.gui;
+
+import com.insatoulouse.chatsystem.model.MessageNetwork;
+import com.insatoulouse.chatsystem.model.RemoteUser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * GuiDispatcher class
+ * Queue view updates posted by any thread and apply them on the Swing event dispatch thread.
+ * At most one pass is waiting in invokeLater : updates posted meanwhile are applied by the same pass,
+ * new messages are added before a single scroll and state changes cause a single repaint.
+ * Posting never waits for Swing.
+ *
+ * @see com.insatoulouse.chatsystem.gui.ChatGUI
+ */
+class GuiDispatcher {
+
+    private static final Logger l = LogManager.getLogger(GuiDispatcher.class.getName());
+
+    private final ChatGUI chatGUI;
+    private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<Event>();
+
+    /**
+     * True while a pass is waiting to run on the EDT
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final Runnable pass = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    GuiDispatcher(ChatGUI chatGUI) {
+        this.chatGUI = chatGUI;
+    }
+
+    void addUser(RemoteUser u) {
+        post(new Event(Type.ADD_USER, u, null));
+    }
+
+    void removeUser(RemoteUser u) {
+        post(new Event(Type.REMOVE_USER, u, null));
+    }
+
+    void newMessage(MessageNetwork m) {
+        post(new Event(Type.NEW_MESSAGE, null, m));
+    }
+
+    void updateMessage(MessageNetwork m) {
+        post(new Event(Type.UPDATE_MESSAGE, null, m));
+    }
+
+    private void post(Event e) {
+        events.add(e);
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(pass);
+        }
+    }
+
+    /**
+     * Apply queued updates, on the EDT
+     */
+    private void dispatch() {
+        // Updates posted from now on schedule another pass
+        scheduled.set(false);
+        Chat chat = chatGUI.getChat();
+        List<MessageNetwork> added = new ArrayList<MessageNetwork>();
+        Set<MessageNetwork> updated = new LinkedHashSet<MessageNetwork>();
+        int count = 0;
+        Event e;
+        while ((e = events.poll()) != null) {
+            count++;
+            if (chat == null) {
+                continue;
+            }
+            switch (e.type) {
+                case NEW_MESSAGE:
+                    added.add(e.message);
+                    break;
+                case UPDATE_MESSAGE:
+                    updated.add(e.message);
+                    break;
+                case ADD_USER:
+                case REMOVE_USER:
+                    // Keep order between users and their messages
+                    if (!added.isEmpty()) {
+                        chat.newMessages(added);
+                        added.clear();
+                    }
+                    if (e.type == Type.ADD_USER) {
+                        chat.addUser(e.user);
+                    } else {
+                        chat.removeUser(e.user);
+                    }
+                    break;
+            }
+        }
+        if (chat == null) {
+            if (count > 0) {
+                l.error("Invalid state, chat panel is null : " + count + " updates dropped.");
+            }
+            return;
+        }
+        if (!added.isEmpty()) {
+            chat.newMessages(added);
+        }
+        if (!updated.isEmpty()) {
+            chat.updateMessages(updated);
+        }
+        l.trace("Dispatched " + count + " updates");
+    }
+
+    private enum Type {
+        ADD_USER, REMOVE_USER, NEW_MESSAGE, UPDATE_MESSAGE
+    }
+
+    /**
+     * Update waiting for the EDT
+     */
+    private static class Event {
+        private final Type type;
+        private final RemoteUser user;
+        private final MessageNetwork message;
+
+        private Event(Type type, RemoteUser user, MessageNetwork message) {
+            this.type = type;
+            this.user = user;
+            this.message = message;
+        }
+    }
+}
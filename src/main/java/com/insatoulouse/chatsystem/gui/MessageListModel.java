@@ -0,0 +1,171 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.gui;
+
+import com.insatoulouse.chatsystem.model.MessageNetwork;
+import com.insatoulouse.chatsystem.model.RemoteUser;
+
+import javax.swing.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * MessageListModel class
+ * Read only view of the conversation with one remote user, nothing is copied :
+ * messages are read from the history when displayed (older ones loaded from disk).
+ * The size seen by the list only changes on the EDT, with one event per change.
+ * <p/>
+ * Row heights are kept by index, for the current list width : the list is laid out from them
+ * without reading messages. Rows never displayed get the average height of measured rows.
+ *
+ * @see com.insatoulouse.chatsystem.model.MessageHistory
+ * @see com.insatoulouse.chatsystem.gui.MessageListUI
+ */
+public class MessageListModel extends AbstractListModel<MessageNetwork> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Height of rows before any row is measured
+     */
+    private static final int DEFAULT_HEIGHT = 40;
+
+    private List<MessageNetwork> messages = Collections.emptyList();
+    private int size = 0;
+
+    /**
+     * Measured heights by index, 0 when not measured
+     */
+    private int[] heights = new int[0];
+    private int width = 0;
+    private long measuredHeight = 0;
+    private int measured = 0;
+
+    /**
+     * True when a row was measured since last layout
+     */
+    private boolean stale = false;
+
+    /**
+     * Show the conversation with a remote user
+     *
+     * @param u remote user, null for none
+     */
+    public void setUser(RemoteUser u) {
+        int old = size;
+        messages = (u != null) ? u.getMessages() : Collections.<MessageNetwork>emptyList();
+        size = messages.size();
+        heights = new int[size];
+        measuredHeight = 0;
+        measured = 0;
+        if (old > 0) {
+            fireIntervalRemoved(this, 0, old - 1);
+        }
+        if (size > 0) {
+            fireIntervalAdded(this, 0, size - 1);
+        }
+    }
+
+    /**
+     * Show messages added to the history since last call
+     */
+    public void refresh() {
+        int old = size;
+        size = messages.size();
+        if (size > old) {
+            if (size > heights.length) {
+                heights = Arrays.copyOf(heights, Math.max(size, heights.length * 2));
+            }
+            fireIntervalAdded(this, old, size - 1);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public MessageNetwork getElementAt(int index) {
+        return messages.get(index);
+    }
+
+    /**
+     * @return width of the list the heights are measured for
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Say if a row must be measured, when displayed
+     *
+     * @param index index of row
+     * @return true if its height is unknown for the current width
+     */
+    public boolean needsHeight(int index) {
+        return width > 0 && index >= 0 && index < size && heights[index] == 0;
+    }
+
+    /**
+     * Keep height of a displayed row
+     *
+     * @param index  index of row
+     * @param height height for the current width
+     */
+    public void setHeight(int index, int height) {
+        if (!needsHeight(index) || height <= 0) {
+            return;
+        }
+        heights[index] = height;
+        measuredHeight += height;
+        measured++;
+        stale = true;
+    }
+
+    /**
+     * @return true if rows were measured since last layout
+     */
+    boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Heights of every row for a list width, forgotten if width changed
+     *
+     * @param width width of the list
+     * @return heights, estimated for rows never displayed
+     */
+    int[] layout(int width) {
+        if (width != this.width) {
+            this.width = width;
+            Arrays.fill(heights, 0);
+            measuredHeight = 0;
+            measured = 0;
+        }
+        int estimate = (measured > 0) ? (int) (measuredHeight / measured) : DEFAULT_HEIGHT;
+        int[] layout = new int[size];
+        for (int i = 0; i < size; i++) {
+            layout[i] = (heights[i] > 0) ? heights[i] : estimate;
+        }
+        stale = false;
+        return layout;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.gui;
+
+import javax.swing.*;
+import javax.swing.plaf.basic.BasicListUI;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.ComponentListener;
+
+/**
+ * MessageListUI class
+ * Vertical list laid out from the heights kept by its MessageListModel : unlike BasicListUI,
+ * the renderer isn't called for every row on layout, so only displayed rows are read from history.
+ * Rows measured when painted, and width changes, lay out the list again.
+ *
+ * @see com.insatoulouse.chatsystem.gui.MessageListModel
+ */
+public class MessageListUI extends BasicListUI {
+
+    private final MessageListModel model;
+
+    private final ComponentListener resizeHandler = new ComponentAdapter() {
+        @Override
+        public void componentResized(ComponentEvent e) {
+            if (list.getWidth() != model.getWidth()) {
+                relayout();
+            }
+        }
+    };
+
+    public MessageListUI(MessageListModel model) {
+        this.model = model;
+    }
+
+    @Override
+    protected void installListeners() {
+        super.installListeners();
+        list.addComponentListener(resizeHandler);
+    }
+
+    @Override
+    protected void uninstallListeners() {
+        list.removeComponentListener(resizeHandler);
+        super.uninstallListeners();
+    }
+
+    @Override
+    protected void updateLayoutState() {
+        Insets insets = list.getInsets();
+        cellWidth = Math.max(0, list.getWidth() - insets.left - insets.right);
+        cellHeight = -1;
+        cellHeights = model.layout(list.getWidth());
+    }
+
+    @Override
+    public void paint(Graphics g, JComponent c) {
+        super.paint(g, c);
+        if (model.isStale()) {
+            relayout();
+        }
+    }
+
+    /**
+     * Lay out the list again on next paint
+     */
+    private void relayout() {
+        updateLayoutStateNeeded = modelChanged;
+        list.revalidate();
+        list.repaint();
+    }
+}
@@ -21,14 +21,24 @@ package com.insatoulouse.chatsystem.gui;
 import com.insatoulouse.chatsystem.model.MessageNetwork;
 
 import javax.swing.*;
+import javax.swing.border.Border;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 
 /**
  * Format message row on JList
+ * Styles are shared by every row. Wrapped text is only measured when asked, the list keeps heights by index.
+ *
+ * @see com.insatoulouse.chatsystem.gui.MessageListModel
  */
 public class MessageRow {
 
+    private static final Color FAILED_FOREGROUND = new Color(153, 0, 0);
+    private static final Color IN_BACKGROUND = new Color(255, 153, 153);
+    private static final Color OUT_BACKGROUND = new Color(195, 195, 198);
+    private static final Border IN_BORDER = new EmptyBorder(5, 5, 5, 40);
+    private static final Border OUT_BORDER = new EmptyBorder(5, 40, 5, 5);
+
     private JPanel panel1;
 
     /**
@@ -47,12 +57,34 @@ public class MessageRow {
      */
     public void setTextMessage(final MessageNetwork m) {
         textMessage.setText(m.getMessage());
+        switch (m.getState()) {
+            case PENDING:
+                textMessage.setForeground(Color.GRAY);
+                break;
+            case FAILED:
+                textMessage.setForeground(FAILED_FOREGROUND);
+                break;
+            default:
+                textMessage.setForeground(Color.BLACK);
+        }
         if (m.getType() == MessageNetwork.IN) {
-            textMessage.setBackground(new Color(255, 153, 153));
-            panel1.setBorder(new EmptyBorder(5, 5, 5, 40));
+            textMessage.setBackground(IN_BACKGROUND);
+            panel1.setBorder(IN_BORDER);
         } else {
-            textMessage.setBackground(new Color(195, 195, 198));
-            panel1.setBorder(new EmptyBorder(5, 40, 5, 5));
+            textMessage.setBackground(OUT_BACKGROUND);
+            panel1.setBorder(OUT_BORDER);
         }
     }
+
+    /**
+     * Height of the row with current message wrapped to width
+     *
+     * @param width width of the row
+     * @return height
+     */
+    public int measure(int width) {
+        Insets insets = panel1.getInsets();
+        textMessage.setSize(Math.max(width - insets.left - insets.right, 1), Short.MAX_VALUE);
+        return textMessage.getPreferredSize().height + insets.top + insets.bottom;
+    }
 }
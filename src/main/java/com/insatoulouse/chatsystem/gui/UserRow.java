@@ -26,6 +26,9 @@ import java.awt.*;
  */
 public class UserRow {
 
+    private static final Color SELECTED_BACKGROUND = new Color(213, 213, 215);
+    private static final Color BACKGROUND = new Color(235, 235, 237);
+
     /**
      * Display last message of conversation
      */
@@ -66,11 +69,11 @@ public class UserRow {
 
     public void isSelected(Boolean selected) {
         if (selected) {
-            panelInner.setBackground(new Color(213, 213, 215));
-            lastMessage.setBackground(new Color(213, 213, 215));
+            panelInner.setBackground(SELECTED_BACKGROUND);
+            lastMessage.setBackground(SELECTED_BACKGROUND);
         } else {
-            panelInner.setBackground(new Color(235, 235, 237));
-            lastMessage.setBackground(new Color(235, 235, 237));
+            panelInner.setBackground(BACKGROUND);
+            lastMessage.setBackground(BACKGROUND);
         }
     }
 
@@ -0,0 +1,330 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.history;
+
+import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.model.MessageArchive;
+import com.insatoulouse.chatsystem.model.MessageNetwork;
+import com.insatoulouse.chatsystem.model.MessageRecord;
+import com.insatoulouse.chatsystem.model.RemoteUser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConversationLog class
+ * Append only log of the messages of one remote user, in segments of fixed size.
+ * Appends are queued to the HistoryStore writer and never wait for the disk. A new segment is
+ * started when the last one is full, the oldest ones are deleted beyond the retention.
+ * Delivery state changes are queued too, and overwrite the state of the written record.
+ * Reads wait until every queued write is done.
+ * Opening a log only lists its segments and maps the last one, records are read when accessed.
+ * Nothing is created on disk before the first message.
+ * <p/>
+ * Message indexes are counted from the first record kept when the log was opened, so they don't
+ * move when old segments are deleted : deleted messages can't be read anymore.
+ *
+ * @see com.insatoulouse.chatsystem.history.HistoryStore
+ */
+class ConversationLog implements MessageArchive {
+
+    private static final Logger l = LogManager.getLogger(ConversationLog.class.getName());
+
+    /**
+     * Time a reader waits for the writer (ms)
+     */
+    private static final long READ_TIMEOUT = 5000;
+
+    private final HistoryStore store;
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    /**
+     * Segments, oldest first, guarded by itself
+     */
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * Index in the log of the message 0
+     */
+    private final long origin;
+
+    /**
+     * Index of next appended record, guarded by this
+     */
+    private long next;
+
+    /**
+     * Writes queued, and done by the writer thread, guarded by this
+     */
+    private long queued = 0;
+    private long done = 0;
+    private volatile boolean failed = false;
+
+    /**
+     * Open (or create) the log of a directory
+     *
+     * @param store       store writing the log
+     * @param dir         directory of the log
+     * @param segmentSize size of a segment (bytes)
+     * @param maxSegments segments kept
+     * @throws IOException
+     */
+    ConversationLog(HistoryStore store, File dir, int segmentSize, int maxSegments) throws IOException {
+        this.store = store;
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        String[] names = dir.list();
+        long[] bases = new long[names != null ? names.length : 0];
+        int n = 0;
+        for (int i = 0; i < bases.length; i++) {
+            long base = Segment.parseBase(names[i]);
+            if (base >= 0) {
+                bases[n++] = base;
+            }
+        }
+        bases = Arrays.copyOf(bases, n);
+        Arrays.sort(bases);
+        for (int i = 0; i < n - 1; i++) {
+            segments.add(Segment.openSealed(dir, bases[i], segmentSize, (int) (bases[i + 1] - bases[i])));
+        }
+        if (n > 0) {
+            segments.add(Segment.openLast(dir, bases[n - 1], segmentSize));
+            Segment last = segments.get(segments.size() - 1);
+            this.origin = segments.get(0).getBase();
+            this.next = last.getBase() + last.getCount();
+        } else {
+            this.origin = 0;
+            this.next = 0;
+        }
+        l.debug("Open history " + dir + " : " + (next - origin) + " messages in " + segments.size() + " segments");
+    }
+
+    @Override
+    public synchronized int size() {
+        return (int) (next - origin);
+    }
+
+    /**
+     * Queue a message, written by the writer thread
+     */
+    @Override
+    public void append(MessageNetwork m) {
+        byte[] record = MessageRecord.encode(m);
+        synchronized (this) {
+            next++;
+            queued++;
+            store.submit(this, record);
+        }
+    }
+
+    /**
+     * Queue a state change, written by the writer thread
+     */
+    @Override
+    public synchronized void setState(int index, MessageNetwork.State state) throws TechnicalException {
+        if (index < 0 || index >= size()) {
+            throw new TechnicalException("Message " + index + " hors de l'historique (" + size() + ")");
+        }
+        queued++;
+        store.submit(this, origin + index, state);
+    }
+
+    @Override
+    public List<MessageNetwork> read(int from, int count, RemoteUser owner) throws TechnicalException {
+        long first = origin + from;
+        long last = first + count;
+        synchronized (this) {
+            if (from < 0 || count < 0 || last > next) {
+                throw new TechnicalException("Messages " + from + "+" + count + " hors de l'historique (" + size() + ")");
+            }
+            awaitDone(queued);
+        }
+        List<MessageNetwork> list = new ArrayList<MessageNetwork>(count);
+        try {
+            for (long i = first; i < last; i++) {
+                Segment s = getSegment(i);
+                if (s == null) {
+                    throw new TechnicalException("Message " + i + " supprimé de l'historique " + dir);
+                }
+                // the segment can't be deleted (and unmapped) while its record is decoded
+                synchronized (s) {
+                    list.add(MessageRecord.decode(s.read((int) (i - s.getBase())), owner));
+                }
+            }
+        } catch (IOException e) {
+            l.error("Fail to read history " + dir, e);
+            throw new TechnicalException("Impossible de lire l'historique", e);
+        } catch (IllegalArgumentException e) {
+            l.error("Corrupted history " + dir, e);
+            throw new TechnicalException("Historique corrompu", e);
+        }
+        return list;
+    }
+
+    /**
+     * The log stays open for next sessions of the remote user, it is closed by the store
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Write a record at the end of the log
+     * Called by the writer thread only
+     *
+     * @param record record
+     */
+    void write(byte[] record) {
+        synchronized (segments) {
+            try {
+                if (!failed) {
+                    if (segments.isEmpty()) {
+                        if (!dir.isDirectory() && !dir.mkdirs()) {
+                            throw new IOException("Fail to create " + dir);
+                        }
+                        segments.add(Segment.create(dir, origin, segmentSize));
+                    }
+                    Segment last = segments.get(segments.size() - 1);
+                    if (!last.append(record)) {
+                        last.force();
+                        last = Segment.create(dir, last.getBase() + last.getCount(), segmentSize);
+                        segments.add(last);
+                        retain();
+                        if (!last.append(record)) {
+                            l.error("Message of " + record.length + " bytes bigger than a segment, not written in " + dir);
+                            last.append(new byte[0]);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                l.error("Fail to write history " + dir + ", next messages are lost", e);
+                failed = true;
+            }
+        }
+        done();
+    }
+
+    /**
+     * Overwrite the state of a written record
+     * Called by the writer thread only
+     *
+     * @param i     index in the log
+     * @param state new state
+     */
+    void writeState(long i, MessageNetwork.State state) {
+        synchronized (segments) {
+            try {
+                Segment s = getSegment(i);
+                if (!failed && s != null) {
+                    s.patch((int) (i - s.getBase()), MessageRecord.STATE_OFFSET, MessageRecord.encodeState(state));
+                }
+            } catch (IOException e) {
+                l.error("Fail to write state of message " + i + " in " + dir, e);
+            }
+        }
+        done();
+    }
+
+    /**
+     * Write written records to disk
+     * Called by the writer thread only
+     */
+    void force() {
+        synchronized (segments) {
+            for (Segment s : segments) {
+                s.force();
+            }
+        }
+    }
+
+    /**
+     * Delete oldest segments beyond the retention
+     * Must hold the segments lock
+     */
+    private void retain() {
+        while (segments.size() > maxSegments) {
+            Segment s = segments.remove(0);
+            if (!s.delete()) {
+                l.warn("Fail to delete history segment " + s.getBase() + " of " + dir);
+            }
+        }
+    }
+
+    /**
+     * Get the segment of a record
+     *
+     * @param i index in the log
+     * @return segment, null if deleted
+     */
+    private Segment getSegment(long i) {
+        synchronized (segments) {
+            int lo = 0;
+            int hi = segments.size() - 1;
+            if (hi < 0 || i < segments.get(0).getBase()) {
+                return null;
+            }
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (segments.get(mid).getBase() <= i) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return segments.get(lo);
+        }
+    }
+
+    private synchronized void done() {
+        done++;
+        notifyAll();
+    }
+
+    /**
+     * Wait until queued writes are done
+     * Must hold the lock
+     */
+    private void awaitDone(long n) throws TechnicalException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT);
+        while (done < n) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                throw new TechnicalException("Historique non écrit : " + dir);
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TechnicalException("Lecture de l'historique interrompue", e);
+            }
+        }
+        if (failed) {
+            throw new TechnicalException("Historique en erreur : " + dir);
+        }
+    }
+}
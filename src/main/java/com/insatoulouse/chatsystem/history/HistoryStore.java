@@ -0,0 +1,302 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.history;
+
+import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.model.MessageArchive;
+import com.insatoulouse.chatsystem.model.MessageNetwork;
+import com.insatoulouse.chatsystem.utils.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HistoryStore class
+ * Persistent conversation logs, one directory per remote user name.
+ * A single writer thread appends queued records and forces them to disk together
+ * (group commit) at most every sync interval.
+ * The search index of every conversation is kept in the same directory.
+ *
+ * @see com.insatoulouse.chatsystem.history.ConversationLog
+ */
+public class HistoryStore {
+
+    private static final Logger l = LogManager.getLogger(HistoryStore.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Time waiting for the writer on sync (ms)
+     */
+    private static final long SYNC_TIMEOUT = 10000;
+
+    /**
+     * Directory of the search index, can't be a remote user directory (always hex)
+     */
+    private static final String SEARCH_DIR = "search";
+
+    private static HistoryStore instance = null;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int segments;
+    private final long syncNanos;
+
+    /**
+     * Open logs, by remote user name
+     */
+    private final Map<String, ConversationLog> logs = new HashMap<String, ConversationLog>();
+    private SearchIndex searchIndex;
+    private final LinkedBlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * Create a store and start its writer
+     *
+     * @param dir          root directory
+     * @param segmentSize  size of a segment (bytes)
+     * @param segments     segments kept per remote user
+     * @param syncInterval maximum time before written records are forced to disk (ms)
+     */
+    public HistoryStore(File dir, int segmentSize, int segments, int syncInterval) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.segments = segments;
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncInterval));
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "HistoryWriter");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static synchronized HistoryStore getInstance() throws TechnicalException {
+        if (instance == null) {
+            Config config = Config.getInstance();
+            instance = new HistoryStore(new File(config.getProperties(Config.CONFIG_HISTORY_DIR)),
+                    config.getIntProperties(Config.CONFIG_HISTORY_SEGMENT_SIZE),
+                    config.getIntProperties(Config.CONFIG_HISTORY_SEGMENTS),
+                    config.getIntProperties(Config.CONFIG_HISTORY_SYNC_INTERVAL));
+        }
+        return instance;
+    }
+
+    /**
+     * Write pending records and close the store, if open
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Open the log of a remote user
+     * Every caller gets the same log for a name
+     *
+     * @param name remote user name
+     * @return log
+     * @throws TechnicalException
+     */
+    public synchronized MessageArchive open(String name) throws TechnicalException {
+        ConversationLog log = logs.get(name);
+        if (log == null) {
+            try {
+                log = new ConversationLog(this, new File(dir, directoryName(name)), segmentSize, segments);
+            } catch (IOException e) {
+                l.error("Fail to open history of " + name, e);
+                throw new TechnicalException("Impossible d'ouvrir l'historique de " + name, e);
+            }
+            logs.put(name, log);
+        }
+        return log;
+    }
+
+    /**
+     * Get the search index, opened on first call
+     *
+     * @return search index
+     * @throws TechnicalException
+     */
+    public synchronized SearchIndex getSearchIndex() throws TechnicalException {
+        if (searchIndex == null) {
+            searchIndex = new SearchIndex(new File(dir, SEARCH_DIR));
+        }
+        return searchIndex;
+    }
+
+    /**
+     * Wait until queued records are on disk
+     *
+     * @throws TechnicalException
+     */
+    public void sync() throws TechnicalException {
+        CountDownLatch latch = new CountDownLatch(1);
+        queue.add(new Write(null, null, latch));
+        try {
+            if (!latch.await(SYNC_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new TechnicalException("Historique non écrit");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TechnicalException("Ecriture de l'historique interrompue", e);
+        }
+    }
+
+    /**
+     * Write pending records and stop the writer
+     */
+    public void close() {
+        try {
+            sync();
+        } catch (TechnicalException e) {
+            l.error("Fail to write history", e);
+        }
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(SYNC_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            logs.clear();
+            if (searchIndex != null) {
+                searchIndex.close();
+                searchIndex = null;
+            }
+        }
+    }
+
+    /**
+     * Queue a record
+     *
+     * @param log    log of the record
+     * @param record record
+     */
+    void submit(ConversationLog log, byte[] record) {
+        queue.add(new Write(log, record, null));
+    }
+
+    /**
+     * Queue a state change
+     *
+     * @param log   log of the record
+     * @param i     index of the record in the log
+     * @param state new state
+     */
+    void submit(ConversationLog log, long i, MessageNetwork.State state) {
+        queue.add(new Write(log, i, state));
+    }
+
+    /**
+     * Directory of a remote user, names can contain any character
+     */
+    private static String directoryName(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : name.getBytes(UTF8)) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writer loop : append every queued record, force them once per sync interval
+     */
+    private void write() {
+        List<Write> batch = new ArrayList<Write>();
+        Set<ConversationLog> dirty = new HashSet<ConversationLog>();
+        List<CountDownLatch> waiting = new ArrayList<CountDownLatch>();
+        long lastSync = System.nanoTime();
+        while (running || !queue.isEmpty()) {
+            try {
+                Write w = queue.poll(syncNanos, TimeUnit.NANOSECONDS);
+                if (w != null) {
+                    batch.add(w);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                // closing, queue is drained by next iterations
+            }
+            for (Write w : batch) {
+                if (w.state != null) {
+                    w.log.writeState(w.index, w.state);
+                    dirty.add(w.log);
+                } else if (w.log != null) {
+                    w.log.write(w.record);
+                    dirty.add(w.log);
+                } else {
+                    waiting.add(w.latch);
+                }
+            }
+            batch.clear();
+            long now = System.nanoTime();
+            if (!waiting.isEmpty() || (!dirty.isEmpty() && now - lastSync >= syncNanos)) {
+                for (ConversationLog log : dirty) {
+                    log.force();
+                }
+                dirty.clear();
+                lastSync = now;
+                for (CountDownLatch latch : waiting) {
+                    latch.countDown();
+                }
+                waiting.clear();
+            }
+        }
+        l.trace("History writer stopped");
+    }
+
+    /**
+     * Record or state change waiting for the writer, or sync request when log is null
+     */
+    private static class Write {
+        private final ConversationLog log;
+        private final byte[] record;
+        private final long index;
+        private final MessageNetwork.State state;
+        private final CountDownLatch latch;
+
+        private Write(ConversationLog log, byte[] record, CountDownLatch latch) {
+            this.log = log;
+            this.record = record;
+            this.index = -1;
+            this.state = null;
+            this.latch = latch;
+        }
+
+        private Write(ConversationLog log, long index, MessageNetwork.State state) {
+            this.log = log;
+            this.record = null;
+            this.index = index;
+            this.state = state;
+            this.latch = null;
+        }
+    }
+}
@@ -0,0 +1,639 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.history;
+
+import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.model.MessageNetwork;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * SearchIndex class
+ * Inverted index of the words of every message, kept next to the history.
+ * <p/>
+ * Messages are queued and indexed in batches by an indexer thread. Each indexed message (document)
+ * is appended to docs.dat, its offset to offsets.dat, and its words to posting lists
+ * (document numbers, delta encoded varints, by blocks) in memory. Posting lists are saved in postings.dat
+ * every SNAPSHOT_EVERY documents and on close; on open, documents after the snapshot are indexed again.
+ * <p/>
+ * Words are lower case letters and digits without accents. A search returns the most recent
+ * messages containing every word of the query : the shortest posting list is read from its end,
+ * block by block, until enough documents are found in every other list.
+ * Documents are read with positional reads, without waiting for the indexer.
+ *
+ * @see com.insatoulouse.chatsystem.history.HistoryStore
+ */
+public class SearchIndex {
+
+    private static final Logger l = LogManager.getLogger(SearchIndex.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String DOCS = "docs.dat";
+    private static final String OFFSETS = "offsets.dat";
+    private static final String POSTINGS = "postings.dat";
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Documents indexed between two snapshots of the posting lists
+     */
+    private static final int SNAPSHOT_EVERY = 10000;
+
+    /**
+     * Longer words are cut
+     */
+    private static final int MAX_WORD = 32;
+
+    private final File dir;
+    private final RandomAccessFile docs;
+    private final FileChannel docsIn;
+    private final DataOutputStream offsetsOut;
+
+    /**
+     * Offset of each document in docs.dat, guarded by lock
+     */
+    private long[] offsets;
+    private int count;
+
+    /**
+     * Posting list of each word, guarded by lock
+     */
+    private final Map<String, PostingList> postings = new HashMap<String, PostingList>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Documents covered by the last snapshot, indexer thread only
+     */
+    private int snapshot;
+
+    private final LinkedBlockingQueue<Document> queue = new LinkedBlockingQueue<Document>();
+    private final Thread indexer;
+    private volatile boolean running = true;
+
+    /**
+     * Open (or create) the index of a directory and start its indexer
+     *
+     * @param dir directory of the index
+     * @throws TechnicalException
+     */
+    public SearchIndex(File dir) throws TechnicalException {
+        this.dir = dir;
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Fail to create " + dir);
+            }
+            this.docs = new RandomAccessFile(new File(dir, DOCS), "rw");
+            this.docsIn = docs.getChannel();
+            loadOffsets();
+            this.offsetsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, OFFSETS), true)));
+            loadSnapshot();
+            for (int id = snapshot; id < count; id++) {
+                Document d = readDocument(id);
+                addPostings(id, d.message);
+            }
+        } catch (IOException e) {
+            l.error("Fail to open search index " + dir, e);
+            throw new TechnicalException("Impossible d'ouvrir l'index de recherche", e);
+        }
+        l.debug("Open search index " + dir + " : " + count + " messages, " + postings.size() + " words");
+        this.indexer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                index();
+            }
+        }, "SearchIndexer");
+        this.indexer.setDaemon(true);
+        this.indexer.start();
+    }
+
+    /**
+     * Queue a message, indexed later by the indexer thread
+     *
+     * @param userName name of the remote user of the conversation
+     * @param m        message
+     */
+    public void add(String userName, MessageNetwork m) {
+        if (m.getMessage() != null && running) {
+            queue.add(new Document(userName, m.getType(), m.getMessage()));
+        }
+    }
+
+    /**
+     * Search messages containing every word of a query
+     *
+     * @param query words
+     * @param limit maximum number of results
+     * @return messages, most recent first
+     * @throws TechnicalException
+     */
+    public List<SearchResult> search(String query, int limit) throws TechnicalException {
+        Set<String> words = new LinkedHashSet<String>(tokenize(query));
+        if (words.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        int[] found = new int[limit];
+        int n = 0;
+        lock.readLock().lock();
+        try {
+            List<PostingList> lists = new ArrayList<PostingList>();
+            for (String w : words) {
+                PostingList p = postings.get(w);
+                if (p == null) {
+                    return Collections.emptyList();
+                }
+                lists.add(p);
+            }
+            Collections.sort(lists, new Comparator<PostingList>() {
+                @Override
+                public int compare(PostingList a, PostingList b) {
+                    return a.count < b.count ? -1 : (a.count == b.count ? 0 : 1);
+                }
+            });
+            PostingList shortest = lists.get(0);
+            int[] block = new int[PostingList.BLOCK];
+            int[] other = new int[PostingList.BLOCK];
+            for (int b = shortest.blocks() - 1; b >= 0 && n < limit; b--) {
+                for (int i = shortest.decode(b, block) - 1; i >= 0 && n < limit; i--) {
+                    boolean all = true;
+                    for (int j = 1; j < lists.size() && all; j++) {
+                        all = lists.get(j).contains(block[i], other);
+                    }
+                    if (all) {
+                        found[n++] = block[i];
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<SearchResult> results = new ArrayList<SearchResult>(n);
+        try {
+            for (int i = 0; i < n; i++) {
+                Document d = readDocument(found[i]);
+                results.add(new SearchResult(d.userName, d.type, d.message));
+            }
+        } catch (IOException e) {
+            l.error("Fail to read search index " + dir, e);
+            throw new TechnicalException("Impossible de lire l'index de recherche", e);
+        }
+        return results;
+    }
+
+    /**
+     * Index queued messages, save the posting lists and stop the indexer
+     */
+    public void close() {
+        running = false;
+        indexer.interrupt();
+        try {
+            indexer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            offsetsOut.close();
+            synchronized (docs) {
+                docs.close();
+            }
+        } catch (IOException e) {
+            l.warn("Fail to close search index " + dir, e);
+        }
+    }
+
+    /**
+     * Split a text in words
+     *
+     * @param text text
+     * @return words, lower case without accents, in order
+     */
+    static List<String> tokenize(String text) {
+        String s = Normalizer.normalize(text, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= s.length(); i++) {
+            char c = i < s.length() ? s.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_WORD) {
+                    word.append(c);
+                }
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Indexer loop : index queued messages by batches
+     */
+    private void index() {
+        List<Document> batch = new ArrayList<Document>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Document d = queue.poll(1, TimeUnit.SECONDS);
+                if (d != null) {
+                    batch.add(d);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                // closing, queue is drained by next iterations
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    indexBatch(batch);
+                } catch (IOException e) {
+                    l.error("Fail to index " + batch.size() + " messages in " + dir, e);
+                }
+                batch.clear();
+            }
+            if (count - snapshot >= SNAPSHOT_EVERY || (!running && count > snapshot)) {
+                saveSnapshot();
+            }
+        }
+    }
+
+    private void indexBatch(List<Document> batch) throws IOException {
+        long[] positions = new long[batch.size()];
+        synchronized (docs) {
+            long end = docs.length();
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] record = batch.get(i).encode();
+                positions[i] = end;
+                docs.seek(end);
+                docs.write(record);
+                end += record.length;
+            }
+        }
+        for (long p : positions) {
+            offsetsOut.writeLong(p);
+        }
+        offsetsOut.flush();
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[count] = positions[i];
+                addPostings(count, batch.get(i).message);
+                count++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a document to the posting lists of its words
+     * Must hold the write lock, or be opening
+     */
+    private void addPostings(int id, String message) {
+        for (String w : new LinkedHashSet<String>(tokenize(message))) {
+            PostingList p = postings.get(w);
+            if (p == null) {
+                p = new PostingList();
+                postings.put(w, p);
+            }
+            p.add(id);
+        }
+    }
+
+    private Document readDocument(int id) throws IOException {
+        long offset;
+        lock.readLock().lock();
+        try {
+            offset = offsets[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+        int nameLength = checkLength(read(offset, 4).getInt());
+        ByteBuffer buf = read(offset + 4, nameLength + 5);
+        byte[] name = new byte[nameLength];
+        buf.get(name);
+        int type = buf.get();
+        int textLength = checkLength(buf.getInt());
+        byte[] text = read(offset + 9 + nameLength, textLength).array();
+        return new Document(new String(name, UTF8), type, new String(text, UTF8));
+    }
+
+    /**
+     * Read bytes of docs.dat at a position, safe with the indexer appending
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (docsIn.read(buf, position + buf.position()) < 0) {
+                throw new EOFException("Document truncated at " + position);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > (1 << 24)) {
+            throw new IOException("Bad string length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Read offsets.dat, ignoring offsets of documents not completely written
+     */
+    private void loadOffsets() throws IOException {
+        File file = new File(dir, OFFSETS);
+        int n = (int) (file.length() / 8);
+        offsets = new long[Math.max(16, n)];
+        count = 0;
+        if (n == 0) {
+            return;
+        }
+        long length = docs.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            for (int i = 0; i < n; i++) {
+                long offset = in.readLong();
+                if (offset >= length) {
+                    break;
+                }
+                offsets[count++] = offset;
+            }
+        } finally {
+            in.close();
+        }
+        if (count < n) {
+            l.warn("Search index " + dir + " : " + (n - count) + " messages lost");
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(count * 8L);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private void loadSnapshot() {
+        snapshot = 0;
+        File file = new File(dir, POSTINGS);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != SNAPSHOT_VERSION) {
+                    throw new IOException("Bad version");
+                }
+                int covered = in.readInt();
+                if (covered > count) {
+                    throw new IOException("Snapshot of " + covered + " messages, " + count + " found");
+                }
+                int words = in.readInt();
+                for (int i = 0; i < words; i++) {
+                    String w = in.readUTF();
+                    PostingList p = new PostingList();
+                    p.count = in.readInt();
+                    p.last = in.readInt();
+                    p.length = in.readInt();
+                    p.data = new byte[Math.max(8, p.length)];
+                    in.readFully(p.data, 0, p.length);
+                    p.index();
+                    postings.put(w, p);
+                }
+                snapshot = covered;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            l.warn("Ignore search index snapshot " + file + ", messages are indexed again", e);
+            postings.clear();
+            snapshot = 0;
+        }
+    }
+
+    /**
+     * Save the posting lists in postings.dat
+     * Indexer thread only
+     */
+    private void saveSnapshot() {
+        File tmp = new File(dir, POSTINGS + ".tmp");
+        File file = new File(dir, POSTINGS);
+        int covered;
+        lock.readLock().lock();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                covered = count;
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(covered);
+                out.writeInt(postings.size());
+                for (Map.Entry<String, PostingList> e : postings.entrySet()) {
+                    PostingList p = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeInt(p.count);
+                    out.writeInt(p.last);
+                    out.writeInt(p.length);
+                    out.write(p.data, 0, p.length);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            l.error("Fail to save search index " + dir, e);
+            return;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            l.error("Fail to replace search index snapshot " + file);
+            return;
+        }
+        snapshot = covered;
+    }
+
+    /**
+     * Message waiting for the indexer, or read from docs.dat
+     */
+    private static class Document {
+        private final String userName;
+        private final int type;
+        private final String message;
+
+        private Document(String userName, int type, String message) {
+            this.userName = userName;
+            this.type = type;
+            this.message = message;
+        }
+
+        private byte[] encode() {
+            byte[] name = userName.getBytes(UTF8);
+            byte[] text = message.getBytes(UTF8);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(9 + name.length + text.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeByte(type);
+                out.writeInt(text.length);
+                out.write(text);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Sorted document numbers of a word, as varint deltas
+     * Every BLOCK numbers, the position and previous number are kept so a block is decoded alone.
+     */
+    private static class PostingList {
+        private static final int BLOCK = 128;
+
+        private byte[] data = new byte[8];
+        private int length = 0;
+        private int count = 0;
+        private int last = -1;
+        private int[] blockPositions = new int[1];
+        private int[] blockBases = new int[1];
+
+        private void add(int id) {
+            if (count % BLOCK == 0) {
+                startBlock(count / BLOCK);
+            }
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int delta = id - last;
+            while ((delta & ~0x7F) != 0) {
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = id;
+            count++;
+        }
+
+        private void startBlock(int b) {
+            if (b == blockPositions.length) {
+                blockPositions = Arrays.copyOf(blockPositions, b * 2);
+                blockBases = Arrays.copyOf(blockBases, b * 2);
+            }
+            blockPositions[b] = length;
+            blockBases[b] = last;
+        }
+
+        /**
+         * Find blocks of a list read from a snapshot
+         */
+        private void index() {
+            int id = -1;
+            int pos = 0;
+            int n = count;
+            length = 0;
+            count = 0;
+            for (int i = 0; i < n; i++) {
+                if (i % BLOCK == 0) {
+                    last = id;
+                    length = pos;
+                    startBlock(i / BLOCK);
+                }
+                int delta = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[pos++];
+                    delta |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        break;
+                    }
+                }
+                id += delta;
+            }
+            length = pos;
+            count = n;
+            last = id;
+        }
+
+        private int blocks() {
+            return (count + BLOCK - 1) / BLOCK;
+        }
+
+        /**
+         * Decode a block
+         *
+         * @param b   block
+         * @param ids BLOCK numbers at least
+         * @return numbers decoded, in order
+         */
+        private int decode(int b, int[] ids) {
+            int n = Math.min(BLOCK, count - b * BLOCK);
+            int id = blockBases[b];
+            int pos = blockPositions[b];
+            for (int i = 0; i < n; i++) {
+                int delta = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte v = data[pos++];
+                    delta |= (v & 0x7F) << shift;
+                    if ((v & 0x80) == 0) {
+                        break;
+                    }
+                }
+                id += delta;
+                ids[i] = id;
+            }
+            return n;
+        }
+
+        /**
+         * Say if a document is in the list, decoding only its block
+         *
+         * @param id  document number
+         * @param ids BLOCK numbers at least, overwritten
+         */
+        private boolean contains(int id, int[] ids) {
+            if (count == 0 || id > last) {
+                return false;
+            }
+            int lo = 0;
+            int hi = blocks() - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (blockBases[mid] < id) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            int n = decode(lo, ids);
+            return Arrays.binarySearch(ids, 0, n, id) >= 0;
+        }
+    }
+}
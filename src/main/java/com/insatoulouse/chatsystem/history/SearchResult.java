@@ -0,0 +1,63 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.history;
+
+import com.insatoulouse.chatsystem.model.MessageNetwork;
+
+/**
+ * SearchResult class
+ * Message found by a search
+ *
+ * @see com.insatoulouse.chatsystem.history.SearchIndex
+ */
+public class SearchResult {
+
+    private final String userName;
+    private final int type;
+    private final String message;
+
+    public SearchResult(String userName, int type, String message) {
+        this.userName = userName;
+        this.type = type;
+        this.message = message;
+    }
+
+    /**
+     * @return name of the remote user of the conversation
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * @return MessageNetwork.IN or MessageNetwork.OUT
+     */
+    public int getType() {
+        return type;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return userName + (type == MessageNetwork.OUT ? " <- " : " -> ") + message;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.history;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Segment class
+ * One file of a conversation log and its offset index, both memory mapped.
+ * The index holds, for each record, the offset where it ends plus one : record i is between
+ * entry i - 1 (1 for the first) and entry i, minus one. Unused entries are 0, even after an empty
+ * first record, so the number of records is found by a binary search without reading the log.
+ * The index file starts small and is mapped again twice as large when full.
+ * Records are appended by the writer thread only, readers never read beyond written records.
+ * Mappings are released when the segment is deleted, so readers hold the segment lock while
+ * they use a record.
+ *
+ * @see com.insatoulouse.chatsystem.history.ConversationLog
+ */
+class Segment {
+
+    private static final Logger l = LogManager.getLogger(Segment.class.getName());
+
+    static final String LOG = ".log";
+    static final String INDEX = ".idx";
+
+    /**
+     * Smallest record expected, sets the maximum size of the index
+     */
+    private static final int MIN_RECORD = 16;
+    private static final int ENTRY = 4;
+
+    /**
+     * Entries of a new index
+     */
+    private static final int INITIAL_ENTRIES = 1024;
+
+    private final long base;
+    private final File logFile;
+    private final File indexFile;
+    private final int capacity;
+    private final int maxRecords;
+    private int entries;
+    private MappedByteBuffer log;
+    private MappedByteBuffer index;
+    private boolean deleted = false;
+    private int count;
+    private int end;
+    private boolean dirty = false;
+
+    private Segment(File dir, long base, int capacity, int count) {
+        this.base = base;
+        this.logFile = new File(dir, name(base) + LOG);
+        this.indexFile = new File(dir, name(base) + INDEX);
+        this.capacity = capacity;
+        this.maxRecords = Math.max(1, capacity / MIN_RECORD);
+        long length = indexFile.length() / ENTRY;
+        this.entries = (int) Math.min(maxRecords, Math.max(Math.max(count, INITIAL_ENTRIES), length));
+        this.count = count;
+    }
+
+    /**
+     * Create an empty segment, to append records
+     *
+     * @param dir      log directory
+     * @param base     index of first record in the log
+     * @param capacity size of the log file (bytes)
+     * @return segment
+     * @throws IOException
+     */
+    static Segment create(File dir, long base, int capacity) throws IOException {
+        Segment s = new Segment(dir, base, capacity, 0);
+        s.map();
+        return s;
+    }
+
+    /**
+     * Open the last segment of a log, to append records
+     */
+    static Segment openLast(File dir, long base, int capacity) throws IOException {
+        Segment s = new Segment(dir, base, existingCapacity(dir, base, capacity), 0);
+        s.map();
+        int lo = 0;
+        int hi = s.entries;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (s.index.getInt(mid * ENTRY) != 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        s.count = lo;
+        s.end = lo == 0 ? 0 : s.index.getInt((lo - 1) * ENTRY) - 1;
+        return s;
+    }
+
+    /**
+     * Open a full segment, mapped when first read
+     */
+    static Segment openSealed(File dir, long base, int capacity, int count) {
+        return new Segment(dir, base, existingCapacity(dir, base, capacity), count);
+    }
+
+    /**
+     * Size of an existing log file, which may have been created with another setting
+     */
+    private static int existingCapacity(File dir, long base, int capacity) {
+        long length = new File(dir, name(base) + LOG).length();
+        return length > 0 ? (int) Math.min(length, Integer.MAX_VALUE) : capacity;
+    }
+
+    /**
+     * Parse the index of first record from a file name
+     *
+     * @param fileName name of a log file
+     * @return index, -1 if it isn't a log file
+     */
+    static long parseBase(String fileName) {
+        if (!fileName.endsWith(LOG)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(0, fileName.length() - LOG.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String name(long base) {
+        return String.format("%020d", base);
+    }
+
+    long getBase() {
+        return base;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Append a record
+     *
+     * @param record record
+     * @return false if segment is full
+     * @throws IOException when index can't grow
+     */
+    boolean append(byte[] record) throws IOException {
+        if (count == maxRecords || end + record.length > capacity) {
+            return false;
+        }
+        if (count == entries) {
+            growIndex();
+        }
+        ByteBuffer out = log.duplicate();
+        out.position(end);
+        out.put(record);
+        end += record.length;
+        index.putInt(count * ENTRY, end + 1);
+        count++;
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Read a record
+     *
+     * @param i index of record in the segment
+     * @return record (read mode), shares the mapping : use it holding the segment lock
+     * @throws IOException
+     */
+    synchronized ByteBuffer read(int i) throws IOException {
+        if (deleted) {
+            throw new IOException("Deleted segment " + logFile);
+        }
+        if (log == null) {
+            map();
+        }
+        int start = start(i);
+        int stop = index.getInt(i * ENTRY) - 1;
+        if (stop < start || stop > capacity) {
+            throw new IOException("Bad index entry " + i + " in " + indexFile);
+        }
+        ByteBuffer in = log.duplicate();
+        in.limit(stop);
+        in.position(start);
+        return in.slice();
+    }
+
+    /**
+     * Overwrite a byte of a written record
+     *
+     * @param i      index of record in the segment
+     * @param offset position in the record
+     * @param value  new byte
+     * @throws IOException
+     */
+    synchronized void patch(int i, int offset, byte value) throws IOException {
+        if (deleted) {
+            throw new IOException("Deleted segment " + logFile);
+        }
+        if (log == null) {
+            map();
+        }
+        int start = start(i);
+        int stop = index.getInt(i * ENTRY) - 1;
+        if (offset < 0 || start + offset >= stop || stop > capacity) {
+            throw new IOException("Bad index entry " + i + " in " + indexFile);
+        }
+        log.put(start + offset, value);
+        dirty = true;
+    }
+
+    /**
+     * Write appended records to disk
+     */
+    void force() {
+        if (dirty) {
+            log.force();
+            index.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Delete the files of the segment
+     *
+     * @return false if a file can't be deleted
+     */
+    synchronized boolean delete() {
+        deleted = true;
+        dirty = false;
+        unmap(log);
+        unmap(index);
+        log = null;
+        index = null;
+        return logFile.delete() & indexFile.delete();
+    }
+
+    private int start(int i) {
+        return i == 0 ? 0 : index.getInt((i - 1) * ENTRY) - 1;
+    }
+
+    private void map() throws IOException {
+        log = map(logFile, capacity);
+        index = map(indexFile, entries * ENTRY);
+    }
+
+    private synchronized void growIndex() throws IOException {
+        int grown = (int) Math.min(maxRecords, entries * 2L);
+        MappedByteBuffer old = index;
+        index = map(indexFile, grown * ENTRY);
+        entries = grown;
+        unmap(old);
+    }
+
+    /**
+     * Release a mapping now rather than when it is garbage collected, which may be never for a
+     * deleted file still taking disk space. There is no public API for it : best effort,
+     * with Unsafe.invokeCleaner (Java 9+) or the cleaner of the buffer (Java 8).
+     *
+     * @param buffer mapping, must not be used afterwards
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                Method getCleaner = buffer.getClass().getMethod("cleaner");
+                getCleaner.setAccessible(true);
+                Object cleaner = getCleaner.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            l.debug("Mapping left to the garbage collector", e);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+}
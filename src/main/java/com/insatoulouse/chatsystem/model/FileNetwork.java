@@ -32,13 +32,25 @@ public class FileNetwork extends MessageNetwork {
     private File file;
 
     public FileNetwork(int type, RemoteUser u, File file) {
-        super(type, u, "");
-        if (type == MessageNetwork.OUT) {
-            setMessage("Envoi du fichier " + file.getName());
-        } else {
-            setMessage("Reception d'un fichier. Enregisté : " + file.getAbsolutePath());
-        }
+        super(u, type, type == MessageNetwork.OUT
+                ? "Envoi du fichier " + file.getName()
+                : "Reception d'un fichier. Enregisté : " + file.getAbsolutePath(), State.DELIVERED);
+        this.file = file;
+        // Added once complete: the history may write it right away
+        u.addMessage(this);
+    }
 
+    /**
+     * File message read back from history, not added to it again
+     *
+     * @param u       remote user owning the history
+     * @param type    IN/OUT
+     * @param message message
+     * @param state   delivery state
+     * @param file    file
+     */
+    FileNetwork(RemoteUser u, int type, String message, State state, File file) {
+        super(u, type, message, state);
         this.file = file;
     }
 
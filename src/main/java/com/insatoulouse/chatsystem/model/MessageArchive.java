@@ -0,0 +1,70 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.model;
+
+import com.insatoulouse.chatsystem.exception.TechnicalException;
+
+import java.util.List;
+
+/**
+ * MessageArchive interface
+ * Storage of the messages of one conversation that don't stay in memory, read back by index
+ *
+ * @see com.insatoulouse.chatsystem.model.MessageHistory
+ */
+public interface MessageArchive {
+
+    /**
+     * @return number of archived messages
+     */
+    public int size();
+
+    /**
+     * Archive a message, after the previous ones
+     *
+     * @param m message
+     * @throws TechnicalException
+     */
+    public void append(MessageNetwork m) throws TechnicalException;
+
+    /**
+     * Change delivery state of an archived message
+     *
+     * @param index index of message
+     * @param state new state
+     * @throws TechnicalException
+     */
+    public void setState(int index, MessageNetwork.State state) throws TechnicalException;
+
+    /**
+     * Read archived messages
+     *
+     * @param from  index of first message
+     * @param count number of messages
+     * @param owner remote user owning the messages
+     * @return messages, in order
+     * @throws TechnicalException
+     */
+    public List<MessageNetwork> read(int from, int count, RemoteUser owner) throws TechnicalException;
+
+    /**
+     * Release the archive
+     */
+    public void close();
+}
@@ -0,0 +1,315 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.model;
+
+import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.utils.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MessageHistory class
+ * Messages exchanged with one remote user. The most recent ones stay in a ring buffer,
+ * older ones are read back by pages from a MessageArchive when accessed,
+ * so memory used by a conversation doesn't grow with its length.
+ * With a persistent archive, set before messages leave memory, every message is appended to it when added
+ * and the ring buffer only caches the last ones : messages of previous sessions come before the new ones.
+ * Otherwise messages are moved to a temporary file when they leave memory.
+ * Thread safe : messages are added by network threads and read by the GUI.
+ *
+ * @see com.insatoulouse.chatsystem.model.MessageArchive
+ */
+public class MessageHistory {
+
+    private static final Logger l = LogManager.getLogger(MessageHistory.class.getName());
+
+    private static final int DEFAULT_MEMORY = 200;
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int DEFAULT_CACHED_PAGES = 4;
+
+    private final RemoteUser owner;
+    private final int pageSize;
+    private final int cachedPages;
+
+    /**
+     * Recent messages, oldest at first
+     */
+    private final MessageNetwork[] recent;
+    private int first = 0;
+    private int count = 0;
+
+    /**
+     * Number of messages before the ring buffer, in the archive
+     */
+    private int archived = 0;
+
+    /**
+     * Set, or created when the first message leaves memory
+     */
+    private MessageArchive archive;
+
+    /**
+     * True when messages are appended to the archive when added
+     */
+    private boolean persistent = false;
+    private boolean closed = false;
+
+    /**
+     * True after a write error : next messages aren't archived, so archived indexes stay right
+     */
+    private boolean archiveFailed = false;
+
+    /**
+     * Pages read from the archive, least recently used first
+     */
+    private final LinkedHashMap<Integer, List<MessageNetwork>> pages;
+
+    private final List<MessageNetwork> view = new AbstractList<MessageNetwork>() {
+        @Override
+        public MessageNetwork get(int index) {
+            return MessageHistory.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return MessageHistory.this.size();
+        }
+    };
+
+    public MessageHistory(RemoteUser owner) {
+        this(owner, getSetting(Config.CONFIG_HISTORY_MEMORY, DEFAULT_MEMORY),
+                getSetting(Config.CONFIG_HISTORY_PAGE_SIZE, DEFAULT_PAGE_SIZE),
+                getSetting(Config.CONFIG_HISTORY_CACHED_PAGES, DEFAULT_CACHED_PAGES));
+    }
+
+    /**
+     * Create an empty history
+     *
+     * @param owner       remote user
+     * @param memory      messages kept in memory
+     * @param pageSize    messages read from archive at once
+     * @param cachedPages pages kept in memory
+     */
+    public MessageHistory(RemoteUser owner, int memory, int pageSize, final int cachedPages) {
+        this.owner = owner;
+        this.recent = new MessageNetwork[Math.max(1, memory)];
+        this.pageSize = Math.max(1, pageSize);
+        this.cachedPages = Math.max(1, cachedPages);
+        this.pages = new LinkedHashMap<Integer, List<MessageNetwork>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<MessageNetwork>> eldest) {
+                return size() > MessageHistory.this.cachedPages;
+            }
+        };
+    }
+
+    /**
+     * Keep messages in a persistent archive, its messages come first
+     * Messages in memory are appended to it. Ignored once messages were archived elsewhere
+     *
+     * @param archive archive of previous sessions
+     * @return false if ignored
+     */
+    public synchronized boolean setArchive(MessageArchive archive) {
+        if (this.archive != null || archived > 0 || closed) {
+            return false;
+        }
+        this.archive = archive;
+        this.archived = archive.size();
+        this.persistent = true;
+        for (int i = 0; i < count; i++) {
+            MessageNetwork m = recent[(first + i) % recent.length];
+            m.historyIndex = archived + i;
+            store(m);
+        }
+        return true;
+    }
+
+    /**
+     * Add a message at the end
+     *
+     * @param m new message
+     */
+    public synchronized void add(MessageNetwork m) {
+        if (count == recent.length) {
+            MessageNetwork oldest = recent[first];
+            recent[first] = null;
+            first = (first + 1) % recent.length;
+            count--;
+            evict(oldest);
+        }
+        m.historyIndex = archived + count;
+        recent[(first + count) % recent.length] = m;
+        count++;
+        if (persistent && !closed) {
+            store(m);
+        }
+    }
+
+    /**
+     * Write the delivery state of a message to the archive, if it is archived
+     * Messages in memory of a temporary archive are archived with their state when they leave it
+     *
+     * @param m message of this history
+     */
+    synchronized void updateState(MessageNetwork m) {
+        int index = m.historyIndex;
+        if (index < 0 || (index >= archived && !persistent) || closed || archiveFailed) {
+            return;
+        }
+        List<MessageNetwork> page = pages.get(index / pageSize);
+        if (page != null) {
+            page.get(index % pageSize).setState(m.getState());
+        }
+        try {
+            if (archive != null && index < archive.size()) {
+                archive.setState(index, m.getState());
+            }
+        } catch (TechnicalException e) {
+            l.error("Fail to update state of message " + index + " of " + owner.getName(), e);
+        }
+    }
+
+    public synchronized int size() {
+        return archived + count;
+    }
+
+    /**
+     * Get a message, reading its page from the archive if needed
+     *
+     * @param index index of message, 0 is the oldest
+     * @return message, or a placeholder when the archive can't be read
+     */
+    public synchronized MessageNetwork get(int index) {
+        if (index < 0 || index >= archived + count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        if (index >= archived) {
+            return recent[(first + index - archived) % recent.length];
+        }
+        int page = index / pageSize;
+        List<MessageNetwork> messages = pages.get(page);
+        if (messages == null) {
+            int from = page * pageSize;
+            int n = Math.min(pageSize, archived - from);
+            try {
+                if (archive == null || from + n > archive.size()) {
+                    throw new TechnicalException("Messages " + from + "+" + n + " absents de l'archive");
+                }
+                messages = archive.read(from, n, owner);
+            } catch (TechnicalException e) {
+                l.error("Fail to read history of " + owner.getName(), e);
+                return new MessageNetwork(owner, MessageNetwork.IN, "Message indisponible", MessageNetwork.State.FAILED);
+            }
+            pages.put(page, messages);
+        }
+        return messages.get(index % pageSize);
+    }
+
+    /**
+     * @return most recent message, null when history is empty
+     */
+    public synchronized MessageNetwork getLast() {
+        return count > 0 ? recent[(first + count - 1) % recent.length] : null;
+    }
+
+    /**
+     * Get a read only view of the history
+     *
+     * @return list backed by the history
+     */
+    public List<MessageNetwork> asList() {
+        return view;
+    }
+
+    /**
+     * Release memory and the archive
+     * Messages of a temporary archive can't be read anymore
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        while (count > 0) {
+            MessageNetwork m = recent[first];
+            recent[first] = null;
+            first = (first + 1) % recent.length;
+            count--;
+            evict(m);
+        }
+        pages.clear();
+        if (archive != null) {
+            archive.close();
+        }
+    }
+
+    /**
+     * Remove the oldest message from memory, moved to a temporary archive if not persistent
+     * Must hold the lock
+     */
+    private void evict(MessageNetwork m) {
+        int page = archived / pageSize;
+        archived++;
+        pages.remove(page);
+        if (persistent || closed || archiveFailed) {
+            return;
+        }
+        try {
+            if (archive == null) {
+                archive = new SpillArchive(pageSize);
+            }
+        } catch (TechnicalException e) {
+            l.error("Fail to archive message of " + owner.getName() + ", older messages are lost", e);
+            archiveFailed = true;
+            return;
+        }
+        store(m);
+    }
+
+    /**
+     * Append a message to the archive
+     * Must hold the lock
+     */
+    private void store(MessageNetwork m) {
+        if (archiveFailed) {
+            return;
+        }
+        try {
+            archive.append(m);
+        } catch (TechnicalException e) {
+            l.error("Fail to archive message of " + owner.getName() + ", next messages are lost", e);
+            archiveFailed = true;
+        }
+    }
+
+    private static int getSetting(String name, int defaultValue) {
+        try {
+            return Config.getInstance().getIntProperties(name);
+        } catch (TechnicalException e) {
+            l.warn("Use default " + name + " : " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -34,6 +34,24 @@ public class MessageNetwork {
      */
     public static final int OUT = 2;
 
+    /**
+     * Delivery of an outgoing message
+     */
+    public enum State {
+        /**
+         * Sent, waiting for ack
+         */
+        PENDING,
+        /**
+         * Acknowledged by remote user (or incoming message)
+         */
+        DELIVERED,
+        /**
+         * Never acknowledged
+         */
+        FAILED
+    }
+
     /**
      * Type IN/OUT
      */
@@ -49,15 +67,38 @@ public class MessageNetwork {
      */
     private String message;
 
+    /**
+     * Delivery state, updated from network threads
+     */
+    private volatile State state = State.DELIVERED;
+
+    /**
+     * Index in the history of the user, -1 for messages read back from history
+     */
+    int historyIndex = -1;
+
     public MessageNetwork(RemoteUser u, String message) {
         this(IN, u, message);
     }
 
     public MessageNetwork(int type, RemoteUser u, String message) {
+        this(u, type, message, State.DELIVERED);
+        u.addMessage(this);
+    }
+
+    /**
+     * Message read back from history, not added to it again
+     *
+     * @param u       remote user owning the history
+     * @param type    IN/OUT
+     * @param message message
+     * @param state   delivery state
+     */
+    MessageNetwork(RemoteUser u, int type, String message, State state) {
         this.type = type;
         this.user = u;
-        u.addMessage(this);
         this.message = message;
+        this.state = state;
     }
 
     public User getUser() {
@@ -84,6 +125,22 @@ public class MessageNetwork {
         this.type = type;
     }
 
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Change delivery state, also in history once the message left memory
+     *
+     * @param state new state
+     */
+    public void setState(State state) {
+        this.state = state;
+        if (historyIndex >= 0) {
+            user.getHistory().updateState(this);
+        }
+    }
+
     @Override
     public String toString() {
         return "MessageNetwork{" +
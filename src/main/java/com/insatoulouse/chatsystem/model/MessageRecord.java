@@ -0,0 +1,117 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.model;
+
+import java.io.File;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * MessageRecord class
+ * Binary form of a message stored in history :
+ * type (1 byte), state (1 byte), message (int length + UTF-8), file path (int length + UTF-8, -1 for no file).
+ * The remote user isn't stored, messages are read back for the history owner.
+ *
+ * @see com.insatoulouse.chatsystem.model.MessageArchive
+ */
+public final class MessageRecord {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final MessageNetwork.State[] STATES = MessageNetwork.State.values();
+
+    /**
+     * Position of the state in a record, updated in place when delivery state changes
+     */
+    public static final int STATE_OFFSET = 1;
+
+    private MessageRecord() {
+    }
+
+    /**
+     * Serialize a message
+     *
+     * @param m message
+     * @return record
+     */
+    public static byte[] encode(MessageNetwork m) {
+        byte[] message = m.getMessage() != null ? m.getMessage().getBytes(UTF8) : new byte[0];
+        byte[] file = null;
+        if (m instanceof FileNetwork && ((FileNetwork) m).getFile() != null) {
+            file = ((FileNetwork) m).getFile().getPath().getBytes(UTF8);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(2 + 4 + message.length + 4 + (file != null ? file.length : 0));
+        buf.put((byte) m.getType());
+        buf.put(encodeState(m.getState()));
+        buf.putInt(message.length);
+        buf.put(message);
+        if (file != null) {
+            buf.putInt(file.length);
+            buf.put(file);
+        } else {
+            buf.putInt(-1);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Serialize a delivery state
+     *
+     * @param state state
+     * @return byte at STATE_OFFSET
+     */
+    public static byte encodeState(MessageNetwork.State state) {
+        return (byte) state.ordinal();
+    }
+
+    /**
+     * Read a message
+     *
+     * @param in    record (read mode), consumed
+     * @param owner remote user owning the history
+     * @return message, not added to history
+     * @throws IllegalArgumentException when record is corrupted
+     */
+    public static MessageNetwork decode(ByteBuffer in, RemoteUser owner) {
+        try {
+            int type = in.get();
+            int state = in.get();
+            if (state < 0 || state >= STATES.length) {
+                throw new IllegalArgumentException("Bad message state " + state);
+            }
+            String message = readString(in, in.getInt());
+            int length = in.getInt();
+            if (length < 0) {
+                return new MessageNetwork(owner, type, message, STATES[state]);
+            }
+            return new FileNetwork(owner, type, message, STATES[state], new File(readString(in, length)));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated message record", e);
+        }
+    }
+
+    private static String readString(ByteBuffer in, int length) {
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.model;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * PeerRegistry class
+ * Connected remote users, indexed by address and by name.
+ * Lookups are lock free, add and remove keep both indexes consistent.
+ *
+ * @see com.insatoulouse.chatsystem.model.RemoteUser
+ */
+public class PeerRegistry {
+
+    private final ConcurrentMap<InetAddress, RemoteUser> byAddr = new ConcurrentHashMap<InetAddress, RemoteUser>();
+    private final ConcurrentMap<String, RemoteUser> byName = new ConcurrentHashMap<String, RemoteUser>();
+
+    /**
+     * Add a remote user
+     *
+     * @param u user to add
+     * @return false if address or name is already used
+     */
+    public synchronized boolean add(RemoteUser u) {
+        if (byAddr.containsKey(u.getIp()) || byName.containsKey(u.getName())) {
+            return false;
+        }
+        byName.put(u.getName(), u);
+        byAddr.put(u.getIp(), u);
+        return true;
+    }
+
+    /**
+     * Remove a remote user
+     *
+     * @param u user to remove
+     * @return false if user wasn't registered
+     */
+    public synchronized boolean remove(RemoteUser u) {
+        boolean removed = byAddr.remove(u.getIp(), u);
+        byName.remove(u.getName(), u);
+        return removed;
+    }
+
+    /**
+     * Remove every user
+     */
+    public synchronized void clear() {
+        byAddr.clear();
+        byName.clear();
+    }
+
+    /**
+     * Get user by address
+     *
+     * @param addr ip address
+     * @return remote user or null
+     */
+    public RemoteUser getByAddr(InetAddress addr) {
+        return byAddr.get(addr);
+    }
+
+    /**
+     * Get user by name
+     *
+     * @param name username
+     * @return remote user or null
+     */
+    public RemoteUser getByName(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Get a snapshot of users
+     *
+     * @return list of users
+     */
+    public List<RemoteUser> getUsers() {
+        return new ArrayList<RemoteUser>(byAddr.values());
+    }
+
+    public int size() {
+        return byAddr.size();
+    }
+}
@@ -19,8 +19,7 @@
 package com.insatoulouse.chatsystem.model;
 
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 /**
  * RemoteUser class
@@ -31,26 +30,59 @@ import java.util.List;
 public class RemoteUser extends User {
 
     /**
-     * Historic of message
+     * Historic of message, recent ones in memory
      */
-    private final ArrayList<MessageNetwork> messages = new ArrayList<MessageNetwork>();
+    private final MessageHistory history = new MessageHistory(this);
+
+    /**
+     * Optional protocol features announced by the remote user
+     *
+     * @see com.insatoulouse.chatsystem.model.network.Capabilities
+     */
+    private final Set<String> capabilities;
 
     public RemoteUser(String name, InetAddress ip) {
+        this(name, ip, null);
+    }
+
+    public RemoteUser(String name, InetAddress ip, Collection<String> capabilities) {
         super(name, ip);
+        if (capabilities != null) {
+            this.capabilities = Collections.unmodifiableSet(new HashSet<String>(capabilities));
+        } else {
+            this.capabilities = Collections.emptySet();
+        }
+    }
+
+    /**
+     * Say if remote user supports an optional feature
+     *
+     * @param capability feature name
+     * @return true if supported
+     */
+    public boolean hasCapability(String capability) {
+        return capabilities.contains(capability);
     }
 
     public void addMessage(MessageNetwork message) {
-        messages.add(message);
+        history.add(message);
     }
 
+    /**
+     * Get messages exchanged with remote user
+     * Read only view of the history, older messages are read from disk when accessed
+     *
+     * @return messages, oldest first
+     */
     public List<MessageNetwork> getMessages() {
-        return messages;
+        return history.asList();
     }
 
     public MessageNetwork getLastMessage() {
-        if (!messages.isEmpty()) {
-            return messages.get(messages.size() - 1);
-        } else
-            return null;
+        return history.getLast();
+    }
+
+    public MessageHistory getHistory() {
+        return history;
     }
 }
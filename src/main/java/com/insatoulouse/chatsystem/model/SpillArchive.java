@@ -0,0 +1,157 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.model;
+
+import com.insatoulouse.chatsystem.exception.TechnicalException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SpillArchive class
+ * Archive in a temporary file, deleted when closed.
+ * Records are a length (int) followed by a MessageRecord. The offset of every stride-th record
+ * is kept in memory, so a page is read with one seek.
+ *
+ * @see com.insatoulouse.chatsystem.model.MessageRecord
+ */
+public class SpillArchive implements MessageArchive {
+
+    private static final Logger l = LogManager.getLogger(SpillArchive.class.getName());
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final int stride;
+    private long[] offsets = new long[16];
+    private int size = 0;
+    private long end = 0;
+
+    /**
+     * Create an empty archive
+     *
+     * @param stride number of records between two indexed offsets
+     * @throws TechnicalException
+     */
+    public SpillArchive(int stride) throws TechnicalException {
+        this.stride = Math.max(1, stride);
+        try {
+            this.file = File.createTempFile("history", ".spill");
+            this.file.deleteOnExit();
+            this.raf = new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            l.error("Fail to create history file", e);
+            throw new TechnicalException("Impossible de créer le fichier d'historique", e);
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void append(MessageNetwork m) throws TechnicalException {
+        byte[] record = MessageRecord.encode(m);
+        ByteBuffer buf = ByteBuffer.allocate(4 + record.length);
+        buf.putInt(record.length);
+        buf.put(record);
+        try {
+            raf.seek(end);
+            raf.write(buf.array());
+        } catch (IOException e) {
+            l.error("Fail to write history file " + file, e);
+            throw new TechnicalException("Impossible d'écrire l'historique", e);
+        }
+        if (size % stride == 0) {
+            int i = size / stride;
+            if (i == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[i] = end;
+        }
+        end += buf.capacity();
+        size++;
+    }
+
+    @Override
+    public synchronized void setState(int index, MessageNetwork.State state) throws TechnicalException {
+        if (index < 0 || index >= size) {
+            throw new TechnicalException("Message " + index + " hors de l'historique (" + size + ")");
+        }
+        try {
+            long position = offsets[index / stride];
+            for (int i = index - index % stride; i < index; i++) {
+                raf.seek(position);
+                position += 4 + raf.readInt();
+            }
+            raf.seek(position + 4 + MessageRecord.STATE_OFFSET);
+            raf.writeByte(MessageRecord.encodeState(state));
+        } catch (IOException e) {
+            l.error("Fail to write history file " + file, e);
+            throw new TechnicalException("Impossible d'écrire l'historique", e);
+        }
+    }
+
+    @Override
+    public synchronized List<MessageNetwork> read(int from, int count, RemoteUser owner) throws TechnicalException {
+        if (from < 0 || count < 0 || from + count > size) {
+            throw new TechnicalException("Messages " + from + "+" + count + " hors de l'historique (" + size + ")");
+        }
+        List<MessageNetwork> list = new ArrayList<MessageNetwork>(count);
+        try {
+            raf.seek(offsets[from / stride]);
+            for (int i = from - from % stride; i < from + count; i++) {
+                int length = raf.readInt();
+                if (i < from) {
+                    raf.skipBytes(length);
+                    continue;
+                }
+                byte[] record = new byte[length];
+                raf.readFully(record);
+                list.add(MessageRecord.decode(ByteBuffer.wrap(record), owner));
+            }
+        } catch (IOException e) {
+            l.error("Fail to read history file " + file, e);
+            throw new TechnicalException("Impossible de lire l'historique", e);
+        } catch (IllegalArgumentException e) {
+            l.error("Corrupted history file " + file, e);
+            throw new TechnicalException("Historique corrompu", e);
+        }
+        return list;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            l.warn("Fail to close history file " + file, e);
+        }
+        if (!file.delete()) {
+            l.warn("Fail to delete history file " + file);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.model.network;
+
+/**
+ * Capabilities class
+ * Optional protocol features announced in Hello and HelloAck.
+ * A feature is only used with a remote user which announced it,
+ * so older clients keep working with the original protocol.
+ *
+ * @see com.insatoulouse.chatsystem.model.network.Hello
+ * @see com.insatoulouse.chatsystem.model.network.HelloAck
+ */
+public final class Capabilities {
+
+    /**
+     * Chunked file transfer which can be resumed after a connection loss
+     */
+    public static final String RESUME = "resume";
+
+    /**
+     * Resumable file transfer split on several connections
+     */
+    public static final String PARALLEL = "parallel";
+
+    /**
+     * Binary packet format for unicast packets
+     *
+     * @see com.insatoulouse.chatsystem.model.network.dao.PacketParserBinary
+     */
+    public static final String BINARY = "binary";
+
+    /**
+     * Packets bigger than the maximum datagram size are split in fragments
+     */
+    public static final String FRAGMENT = "fragment";
+
+    /**
+     * Several small packets can be received in one datagram
+     *
+     * @see com.insatoulouse.chatsystem.ni.udp.UdpBatcher
+     */
+    public static final String BATCH = "batch";
+
+    /**
+     * Received messages are acknowledged together, after a short delay or in outgoing messages
+     *
+     * @see com.insatoulouse.chatsystem.model.network.MessageAck
+     */
+    public static final String SACK = "sack";
+
+    private Capabilities() {
+    }
+}
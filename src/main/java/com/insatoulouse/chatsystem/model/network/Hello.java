@@ -18,16 +18,24 @@
 
 package com.insatoulouse.chatsystem.model.network;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.insatoulouse.chatsystem.exception.LogicalException;
 
+import java.util.List;
+
 /**
  * Hello class
  * Signal send/receive to/from network when a User connect to ChatSystem
  * {
  * "type":"hello",
- * "userName":"test"
+ * "userName":"test",
+ * "capabilities":["resume"],
+ * "firstNumber":1234
  * }
+ * capabilities and firstNumber are optional
+ *
+ * @see com.insatoulouse.chatsystem.model.network.Capabilities
  */
 public class Hello implements Packet {
 
@@ -37,6 +45,20 @@ public class Hello implements Packet {
      */
     private String userName;
 
+    /**
+     * capabilities
+     * Optional features supported by the sender
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<String> capabilities;
+
+    /**
+     * firstNumber
+     * Optional number of the first message the sender will send in the session
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer firstNumber;
+
     public Hello(@JsonProperty(value = "userName", required = true) String data) throws LogicalException {
         setUserName(data);
     }
@@ -53,4 +75,23 @@ public class Hello implements Packet {
         this.userName = userName;
     }
 
+    public List<String> getCapabilities() {
+        return capabilities;
+    }
+
+    public void setCapabilities(List<String> capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    public Integer getFirstNumber() {
+        return firstNumber;
+    }
+
+    public void setFirstNumber(Integer firstNumber) throws LogicalException {
+        if (firstNumber != null && firstNumber < 0) {
+            throw new LogicalException("Bad first number");
+        }
+        this.firstNumber = firstNumber;
+    }
+
 }
@@ -18,18 +18,25 @@
 
 package com.insatoulouse.chatsystem.model.network;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.insatoulouse.chatsystem.exception.LogicalException;
 
+import java.util.List;
+
 /**
  * HelloAck class
  * Signal is sent to new user
  * Signal is received from other user when send Hello
  * {
  * "type":"helloAck",
- * "userName":"test"
+ * "userName":"test",
+ * "capabilities":["resume"],
+ * "firstNumber":1234
  * }
+ * capabilities and firstNumber are optional
  *
+ * @see com.insatoulouse.chatsystem.model.network.Capabilities
  * @see Hello
  */
 public class HelloAck implements Packet {
@@ -40,6 +47,20 @@ public class HelloAck implements Packet {
      */
     private String userName;
 
+    /**
+     * capabilities
+     * Optional features supported by the sender
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<String> capabilities;
+
+    /**
+     * firstNumber
+     * Optional number of the first message the sender will send in the session
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer firstNumber;
+
     public HelloAck(@JsonProperty(value = "userName", required = true) String userName) throws LogicalException {
         setUserName(userName);
     }
@@ -54,4 +75,23 @@ public class HelloAck implements Packet {
         }
         this.userName = userName;
     }
+
+    public List<String> getCapabilities() {
+        return capabilities;
+    }
+
+    public void setCapabilities(List<String> capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    public Integer getFirstNumber() {
+        return firstNumber;
+    }
+
+    public void setFirstNumber(Integer firstNumber) throws LogicalException {
+        if (firstNumber != null && firstNumber < 0) {
+            throw new LogicalException("Bad first number");
+        }
+        this.firstNumber = firstNumber;
+    }
 }
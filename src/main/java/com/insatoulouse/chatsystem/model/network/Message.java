@@ -18,6 +18,7 @@
 
 package com.insatoulouse.chatsystem.model.network;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.insatoulouse.chatsystem.exception.LogicalException;
 
@@ -27,13 +28,17 @@ import com.insatoulouse.chatsystem.exception.LogicalException;
  * {
  * "type":"message",
  * "messageNumber":3,
- * "messageData":"Mon message"
+ * "messageData":"Mon message",
+ * "ack":7,
+ * "sack":5
  * }
+ * ack and sack are optional : acknowledgement of received messages piggybacked on the message,
+ * read as a MessageAck with messageNumber ack.
+ *
+ * @see com.insatoulouse.chatsystem.model.network.MessageAck
  */
 public class Message implements Packet {
 
-    private static int countMessage = 0;
-
     /**
      * messageNumber
      * Must be not null and greater than 0
@@ -46,14 +51,23 @@ public class Message implements Packet {
      */
     private String messageData;
 
+    /**
+     * ack
+     * Optional highest message number received from the remote user with every message before it
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer ack;
+
+    /**
+     * sack
+     * Optional bitmap of the messages received after ack + 1
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long sack;
+
     public Message(@JsonProperty(value = "messageNumber", required = true) Integer messageNumber, @JsonProperty(value = "messageData", required = true) String messageData) throws LogicalException {
         setMessageNumber(messageNumber);
         setMessageData(messageData);
-        Message.countMessage++;
-    }
-
-    public static int getCountMessage() {
-        return countMessage;
     }
 
     public Integer getMessageNumber() {
@@ -77,4 +91,23 @@ public class Message implements Packet {
         }
         this.messageData = messageData;
     }
+
+    public Integer getAck() {
+        return ack;
+    }
+
+    public void setAck(Integer ack) throws LogicalException {
+        if (ack != null && ack < 0) {
+            throw new LogicalException("Bad ack number");
+        }
+        this.ack = ack;
+    }
+
+    public Long getSack() {
+        return sack;
+    }
+
+    public void setSack(Long sack) {
+        this.sack = sack;
+    }
 }
@@ -18,6 +18,7 @@
 
 package com.insatoulouse.chatsystem.model.network;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.insatoulouse.chatsystem.exception.LogicalException;
 
@@ -26,8 +27,14 @@ import com.insatoulouse.chatsystem.exception.LogicalException;
  * Send/Receive ack message
  * {
  * "type":"messageAck",
- * "messageNumber":3
+ * "messageNumber":3,
+ * "sack":5
  * }
+ * sack is optional : without it, only messageNumber is acknowledged. With it, messageNumber is the
+ * highest message received with every message before it, and bit i of sack says that message
+ * messageNumber + 2 + i was received too (messageNumber + 1 is missing).
+ *
+ * @see com.insatoulouse.chatsystem.model.network.Capabilities#SACK
  */
 public class MessageAck implements Packet {
 
@@ -37,6 +44,13 @@ public class MessageAck implements Packet {
      */
     private Integer messageNumber;
 
+    /**
+     * sack
+     * Optional bitmap of the messages received after messageNumber + 1
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long sack;
+
     public MessageAck(@JsonProperty(value = "messageNumber", required = true) Integer messageNumber) throws LogicalException {
         setMessageNumber(messageNumber);
     }
@@ -51,4 +65,12 @@ public class MessageAck implements Packet {
         }
         this.messageNumber = messageNumber;
     }
+
+    public Long getSack() {
+        return sack;
+    }
+
+    public void setSack(Long sack) {
+        this.sack = sack;
+    }
 }
@@ -33,6 +33,8 @@ public abstract class AbstractFactory {
         switch (type) {
             case JSON:
                 return JsonFactory.getInstance();
+            case BINARY:
+                return BinaryFactory.getInstance();
             default:
                 return null;
         }
@@ -44,6 +46,7 @@ public abstract class AbstractFactory {
      * Type available for Packet parser
      */
     public enum Type {
-        JSON
+        JSON,
+        BINARY
     }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.model.network.dao;
+
+/**
+ * BinaryFactory singleton class
+ * Is a concrete factory
+ *
+ * @see com.insatoulouse.chatsystem.model.network.dao.AbstractFactory
+ */
+public class BinaryFactory extends AbstractFactory {
+    private static BinaryFactory instance = null;
+
+    private BinaryFactory() {
+    } // Pattern Singleton
+
+    public static synchronized BinaryFactory getInstance() {
+        if (instance == null) instance = new BinaryFactory();
+        return instance;
+    }
+
+    @Override
+    public PacketParser getPacketParser() {
+        return new PacketParserBinary();
+    }
+}
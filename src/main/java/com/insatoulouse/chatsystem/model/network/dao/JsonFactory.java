@@ -21,13 +21,17 @@ package com.insatoulouse.chatsystem.model.network.dao;
 /**
  * JsonFactory singleton class
  * Is a concrete factory
+ * Every caller shares one thread safe parser, warmed up when the factory is created
  *
  * @see com.insatoulouse.chatsystem.model.network.dao.AbstractFactory
  */
 public class JsonFactory extends AbstractFactory {
     private static JsonFactory instance = null;
+    private final PacketParserJson parser;
 
     private JsonFactory() {
+        parser = new PacketParserJson();
+        parser.warmUp();
     } // Pattern Singleton
 
     public static synchronized JsonFactory getInstance() {
@@ -37,6 +41,6 @@ public class JsonFactory extends AbstractFactory {
 
     @Override
     public PacketParser getPacketParser() {
-        return new PacketParserJson();
+        return parser;
     }
 }
\ No newline at end of file
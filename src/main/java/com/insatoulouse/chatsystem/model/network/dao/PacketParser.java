@@ -21,6 +21,8 @@ package com.insatoulouse.chatsystem.model.network.dao;
 import com.insatoulouse.chatsystem.exception.PacketException;
 import com.insatoulouse.chatsystem.model.network.Packet;
 
+import java.nio.ByteBuffer;
+
 /**
  * PacketParser interface
  */
@@ -43,4 +45,34 @@ public interface PacketParser {
      * @throws PacketException
      */
     public String write(Packet data) throws PacketException;
+
+    /**
+     * Get a Packet from raw bytes
+     *
+     * @param buf    data input
+     * @param offset first byte of the packet
+     * @param length packet length
+     * @return corresponding Packet
+     * @throws PacketException
+     */
+    public Packet read(byte[] buf, int offset, int length) throws PacketException;
+
+    /**
+     * Get a Packet from the remaining bytes of a buffer
+     * The buffer position is moved to its limit
+     *
+     * @param buf data input (read mode)
+     * @return corresponding Packet
+     * @throws PacketException
+     */
+    public Packet read(ByteBuffer buf) throws PacketException;
+
+    /**
+     * Serialize a Packet at the position of a buffer
+     *
+     * @param data Packet to serialize
+     * @param buf  output (write mode), position is moved after the packet
+     * @throws PacketException when the packet can't be serialized or doesn't fit in the buffer
+     */
+    public void write(Packet data, ByteBuffer buf) throws PacketException;
 }
@@ -0,0 +1,270 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.model.network.dao;
+
+import com.insatoulouse.chatsystem.exception.LogicalException;
+import com.insatoulouse.chatsystem.exception.PacketException;
+import com.insatoulouse.chatsystem.model.network.*;
+import com.insatoulouse.chatsystem.utils.NetworkTools;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PacketParserBinary class
+ * <p/>
+ * Compact binary format :
+ * MAGIC (1 byte), packet type (1 byte), then fields of the packet in declaration order.
+ * Integers are unsigned varints, strings are a varint length followed by UTF-8 bytes,
+ * lists are a varint count followed by elements (0 for no list), sack bitmaps are 8 bytes.
+ * The first message number of Hello and HelloAck is an optional varint at the end of the packet.
+ * Messages and acks carrying a sack bitmap have their own packet types.
+ * <p/>
+ * The String API carries raw bytes (one char per byte, ISO-8859-1), the network uses the byte API.
+ *
+ * @see com.insatoulouse.chatsystem.model.network.Packet
+ * @see com.insatoulouse.chatsystem.model.network.dao.PacketParser
+ */
+public class PacketParserBinary implements PacketParser {
+
+    /**
+     * First byte of every binary packet. A JSON packet can't start with it.
+     */
+    public static final byte MAGIC = (byte) 0xC5;
+
+    /**
+     * Charset used to carry bytes in a String
+     */
+    public static final Charset RAW = Charset.forName("ISO-8859-1");
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte HELLO = 1;
+    private static final byte HELLO_ACK = 2;
+    private static final byte MESSAGE = 3;
+    private static final byte MESSAGE_ACK = 4;
+    private static final byte GOODBYE = 5;
+    private static final byte MESSAGE_SACK = 6;
+    private static final byte MESSAGE_ACK_SACK = 7;
+
+    @Override
+    public Packet read(String data) throws PacketException {
+        if (data == null) {
+            throw new PacketException("Impossible de lire le Packet binaire : null", null);
+        }
+        byte[] bytes = data.getBytes(RAW);
+        return read(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public String write(Packet p) throws PacketException {
+        ByteBuffer buf = ByteBuffer.allocate(NetworkTools.MAX_DATAGRAM_SIZE);
+        write(p, buf);
+        return new String(buf.array(), 0, buf.position(), RAW);
+    }
+
+    @Override
+    public Packet read(byte[] buf, int offset, int length) throws PacketException {
+        return read(ByteBuffer.wrap(buf, offset, length));
+    }
+
+    @Override
+    public Packet read(ByteBuffer in) throws PacketException {
+        try {
+            if (in.get() != MAGIC) {
+                throw new PacketException("Impossible de lire le Packet binaire : magic", null);
+            }
+            byte type = in.get();
+            Packet p;
+            switch (type) {
+                case HELLO:
+                    Hello hello = new Hello(readString(in));
+                    hello.setCapabilities(readStringList(in));
+                    hello.setFirstNumber(readOptionalVarInt(in));
+                    p = hello;
+                    break;
+                case HELLO_ACK:
+                    HelloAck helloAck = new HelloAck(readString(in));
+                    helloAck.setCapabilities(readStringList(in));
+                    helloAck.setFirstNumber(readOptionalVarInt(in));
+                    p = helloAck;
+                    break;
+                case MESSAGE:
+                    p = new Message(readVarInt(in), readString(in));
+                    break;
+                case MESSAGE_SACK:
+                    Message message = new Message(readVarInt(in), readString(in));
+                    message.setAck(readVarInt(in));
+                    message.setSack(in.getLong());
+                    p = message;
+                    break;
+                case MESSAGE_ACK:
+                    p = new MessageAck(readVarInt(in));
+                    break;
+                case MESSAGE_ACK_SACK:
+                    MessageAck ack = new MessageAck(readVarInt(in));
+                    ack.setSack(in.getLong());
+                    p = ack;
+                    break;
+                case GOODBYE:
+                    p = new Goodbye();
+                    break;
+                default:
+                    throw new PacketException("Impossible de lire le Packet binaire : type " + type, null);
+            }
+            if (in.hasRemaining()) {
+                throw new PacketException("Impossible de lire le Packet binaire : " + in.remaining() + " octets en trop", null);
+            }
+            return p;
+        } catch (LogicalException e) {
+            throw new PacketException("Impossible de lire le Packet binaire", e);
+        } catch (BufferUnderflowException e) {
+            throw new PacketException("Impossible de lire le Packet binaire : tronqué", e);
+        } finally {
+            in.position(in.limit());
+        }
+    }
+
+    @Override
+    public void write(Packet p, ByteBuffer out) throws PacketException {
+        int start = out.position();
+        try {
+            out.put(MAGIC);
+            if (p instanceof Hello) {
+                out.put(HELLO);
+                writeString(out, ((Hello) p).getUserName());
+                writeStringList(out, ((Hello) p).getCapabilities());
+                writeOptionalVarInt(out, ((Hello) p).getFirstNumber());
+            } else if (p instanceof HelloAck) {
+                out.put(HELLO_ACK);
+                writeString(out, ((HelloAck) p).getUserName());
+                writeStringList(out, ((HelloAck) p).getCapabilities());
+                writeOptionalVarInt(out, ((HelloAck) p).getFirstNumber());
+            } else if (p instanceof Message) {
+                Message m = (Message) p;
+                boolean sack = m.getAck() != null && m.getSack() != null;
+                out.put(sack ? MESSAGE_SACK : MESSAGE);
+                writeVarInt(out, m.getMessageNumber());
+                writeString(out, m.getMessageData());
+                if (sack) {
+                    writeVarInt(out, m.getAck());
+                    out.putLong(m.getSack());
+                }
+            } else if (p instanceof MessageAck) {
+                MessageAck ack = (MessageAck) p;
+                out.put(ack.getSack() != null ? MESSAGE_ACK_SACK : MESSAGE_ACK);
+                writeVarInt(out, ack.getMessageNumber());
+                if (ack.getSack() != null) {
+                    out.putLong(ack.getSack());
+                }
+            } else if (p instanceof Goodbye) {
+                out.put(GOODBYE);
+            } else {
+                out.position(start);
+                throw new PacketException("Impossible de mettre le Packet en binaire : " + p, null);
+            }
+        } catch (BufferOverflowException e) {
+            out.position(start);
+            throw new PacketException("Impossible de mettre le Packet en binaire : trop grand", e);
+        }
+    }
+
+    private static int readVarInt(ByteBuffer in) throws PacketException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new PacketException("Impossible de lire le Packet binaire : varint", null);
+    }
+
+    private static Integer readOptionalVarInt(ByteBuffer in) throws PacketException {
+        return in.hasRemaining() ? readVarInt(in) : null;
+    }
+
+    private static String readString(ByteBuffer in) throws PacketException {
+        int length = readVarInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            s = new String(bytes, UTF8);
+        }
+        return s;
+    }
+
+    private static List<String> readStringList(ByteBuffer in) throws PacketException {
+        int count = readVarInt(in);
+        if (count == 0) {
+            return null;
+        }
+        if (count < 0 || count > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        List<String> list = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(readString(in));
+        }
+        return list;
+    }
+
+    private static void writeVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static void writeOptionalVarInt(ByteBuffer out, Integer value) {
+        if (value != null) {
+            writeVarInt(out, value);
+        }
+    }
+
+    private static void writeString(ByteBuffer out, String s) {
+        byte[] bytes = s.getBytes(UTF8);
+        writeVarInt(out, bytes.length);
+        out.put(bytes);
+    }
+
+    private static void writeStringList(ByteBuffer out, List<String> list) {
+        if (list == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, list.size());
+        for (String s : list) {
+            writeString(out, s);
+        }
+    }
+}
@@ -18,41 +18,87 @@
 
 package com.insatoulouse.chatsystem.model.network.dao;
 
+import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.insatoulouse.chatsystem.exception.LogicalException;
 import com.insatoulouse.chatsystem.exception.PacketException;
-import com.insatoulouse.chatsystem.model.network.Packet;
+import com.insatoulouse.chatsystem.model.network.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * PacketParserJson class
  * <p/>
  * Use jackson lib to parse a packet in JSON
+ * ObjectReader and ObjectWriter are immutable and thread safe, so one parser is shared by every thread.
  *
  * @see com.insatoulouse.chatsystem.model.network.Packet
  * @see com.fasterxml.jackson.databind.ObjectMapper
  * @see com.insatoulouse.chatsystem.model.network.dao.PacketParser
+ * @see com.insatoulouse.chatsystem.model.network.dao.JsonFactory
  */
 public class PacketParserJson implements PacketParser {
 
+    private static final Logger l = LogManager.getLogger(PacketParserJson.class.getName());
+
+    /**
+     * Reader of any Packet, subtype is given by the "type" property
+     */
+    private final ObjectReader reader;
+
     /**
-     * ObjectMapper is useful to serialize (and deserialize) an Packet in JSON
+     * Writer of any Packet, used to create writers of each packet type
      */
-    private final ObjectMapper mapper = new ObjectMapper();
+    private final ObjectWriter writer;
+
+    /**
+     * Writer of each packet type, to skip the lookup of the serializer on each packet
+     */
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<Class<?>, ObjectWriter>();
 
     public PacketParserJson() {
+        ObjectMapper mapper = new ObjectMapper();
         mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        this.reader = mapper.reader(Packet.class);
+        this.writer = mapper.writerWithType(Packet.class);
+    }
+
+    /**
+     * Build serializers and deserializers of every packet type
+     * so the first packet on the network doesn't pay for introspection
+     */
+    void warmUp() {
+        for (JsonSubTypes.Type type : Packet.class.getAnnotation(JsonSubTypes.class).value()) {
+            getWriter(type.value());
+        }
+        try {
+            Packet[] samples = {new Hello("warmUp"), new HelloAck("warmUp"), new Message(0, "warmUp"), new MessageAck(0), new Goodbye()};
+            for (Packet p : samples) {
+                read(write(p));
+            }
+        } catch (LogicalException e) {
+            l.warn("Fail to warm up json parser", e);
+        } catch (PacketException e) {
+            l.warn("Fail to warm up json parser", e);
+        }
     }
 
     @Override
     public Packet read(String data) throws PacketException {
 
         try {
-            return mapper.readValue(data, Packet.class);
+            return reader.readValue(data);
         } catch (JsonMappingException e) {
             throw new PacketException("Impossible de mettre le json en Packet", e);
         } catch (JsonParseException e) {
@@ -66,11 +112,65 @@ public class PacketParserJson implements PacketParser {
     public String write(Packet p) throws PacketException {
         String ret;
         try {
-            ret = mapper.writeValueAsString(p);
+            ret = getWriter(p.getClass()).writeValueAsString(p);
         } catch (JsonProcessingException e) {
             throw new PacketException("Impossible de mettre le Packet en json", e);
         }
         return ret;
     }
 
+    @Override
+    public Packet read(byte[] buf, int offset, int length) throws PacketException {
+        try {
+            return reader.readValue(buf, offset, length);
+        } catch (IOException e) {
+            throw new PacketException("Impossible de mettre le json en Packet", e);
+        }
+    }
+
+    @Override
+    public Packet read(ByteBuffer buf) throws PacketException {
+        if (buf.hasArray()) {
+            Packet p = read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+            return p;
+        }
+        try {
+            return reader.readValue(new ByteBufferStreams.Input(buf));
+        } catch (IOException e) {
+            throw new PacketException("Impossible de mettre le json en Packet", e);
+        } finally {
+            buf.position(buf.limit());
+        }
+    }
+
+    @Override
+    public void write(Packet p, ByteBuffer buf) throws PacketException {
+        int start = buf.position();
+        try {
+            getWriter(p.getClass()).writeValue(new ByteBufferStreams.Output(buf), p);
+        } catch (IOException e) {
+            buf.position(start);
+            throw new PacketException("Impossible de mettre le Packet en json", e);
+        }
+    }
+
+    /**
+     * Get writer of a packet type
+     *
+     * @param type packet class
+     * @return cached writer
+     */
+    private ObjectWriter getWriter(Class<?> type) {
+        ObjectWriter w = writers.get(type);
+        if (w == null) {
+            w = writer.withType(type);
+            ObjectWriter previous = writers.putIfAbsent(type, w);
+            if (previous != null) {
+                w = previous;
+            }
+        }
+        return w;
+    }
+
 }
\ No newline at end of file
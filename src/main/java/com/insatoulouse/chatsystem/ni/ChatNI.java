@@ -22,16 +22,22 @@ import com.insatoulouse.chatsystem.Controller;
 import com.insatoulouse.chatsystem.exception.LogicalException;
 import com.insatoulouse.chatsystem.exception.PacketException;
 import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.model.MessageNetwork;
 import com.insatoulouse.chatsystem.model.RemoteUser;
 import com.insatoulouse.chatsystem.model.User;
 import com.insatoulouse.chatsystem.model.network.*;
 import com.insatoulouse.chatsystem.model.network.dao.AbstractFactory;
 import com.insatoulouse.chatsystem.model.network.dao.PacketParser;
+import com.insatoulouse.chatsystem.model.network.dao.PacketParserBinary;
 import com.insatoulouse.chatsystem.ni.tcp.TcpListener;
 import com.insatoulouse.chatsystem.ni.tcp.TcpSenderCommand;
+import com.insatoulouse.chatsystem.ni.udp.UdpBatcher;
 import com.insatoulouse.chatsystem.ni.udp.UdpListener;
+import com.insatoulouse.chatsystem.ni.udp.UdpSender;
 import com.insatoulouse.chatsystem.ni.udp.UdpSenderCommand;
+import com.insatoulouse.chatsystem.utils.Config;
 import com.insatoulouse.chatsystem.utils.NetworkTools;
+import com.insatoulouse.chatsystem.utils.TimerWheel;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -39,7 +45,14 @@ import java.io.File;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * ChatNI class
@@ -47,12 +60,55 @@ import java.util.ArrayList;
 public class ChatNI {
 
     private static final Logger l = LogManager.getLogger(ChatNI.class.getName());
+
+    /**
+     * Optional features supported by this client, announced in Hello and HelloAck
+     */
+    private static final List<String> CAPABILITIES = Arrays.asList(Capabilities.RESUME, Capabilities.PARALLEL, Capabilities.BINARY,
+            Capabilities.FRAGMENT, Capabilities.BATCH, Capabilities.SACK);
+    /**
+     * Serialization buffer of each sending thread, packets are copied out of it
+     */
+    private static final ThreadLocal<ByteBuffer> SEND_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(NetworkTools.MAX_DATAGRAM_SIZE);
+        }
+    };
     private final PacketParser parser = AbstractFactory.getFactory(AbstractFactory.Type.JSON).getPacketParser();
+    private final PacketParser binaryParser = AbstractFactory.getFactory(AbstractFactory.Type.BINARY).getPacketParser();
     private final Controller controller;
     private TcpListener tcpListener;
     private UdpListener udpListener;
+    private UdpSender udpSender;
     private NetworkInvoker invoker;
     private InetAddress broadcastAddr;
+    private TimerWheel timer;
+    private SessionConfig sessionConfig;
+    private Reassembler reassembler;
+    private UdpBatcher batcher;
+
+    /**
+     * True to batch small packets to remote users supporting it
+     */
+    private boolean batch;
+
+    /**
+     * Packets bigger than this size are fragmented for remote users supporting it
+     */
+    private int maxDatagramSize;
+    private final AtomicInteger fragmentIds = new AtomicInteger();
+
+    /**
+     * Number of the first message of each session, announced in Hello and HelloAck.
+     * Random so a restarted client isn't taken for duplicates.
+     */
+    private int firstNumber;
+
+    /**
+     * Transport state of each remote user, by address
+     */
+    private final ConcurrentMap<InetAddress, PeerSession> sessions = new ConcurrentHashMap<InetAddress, PeerSession>();
 
     public ChatNI(Controller c) {
         this.controller = c;
@@ -61,15 +117,31 @@ public class ChatNI {
     public void start(InetAddress addr) throws TechnicalException {
         l.trace("Start ChatNI");
         this.broadcastAddr = addr;
+        this.firstNumber = ThreadLocalRandom.current().nextInt(1 << 30);
+
+        Config config = Config.getInstance();
+        this.sessionConfig = new SessionConfig();
+        this.timer = new TimerWheel("TimerWheel", config.getIntProperties(Config.CONFIG_TIMER_TICK),
+                config.getIntProperties(Config.CONFIG_TIMER_SIZE));
+        this.timer.start();
+        this.maxDatagramSize = config.getIntProperties(Config.CONFIG_UDP_MAX_DATAGRAM_SIZE);
+        this.reassembler = new Reassembler(timer, config.getIntProperties(Config.CONFIG_UDP_REASSEMBLY_MEMORY),
+                config.getIntProperties(Config.CONFIG_UDP_REASSEMBLY_TIMEOUT));
+
+        this.udpSender = new UdpSender();
+
+        this.invoker = new NetworkInvoker();
+        this.invoker.start();
+
+        this.batch = Boolean.parseBoolean(config.getProperties(Config.CONFIG_UDP_BATCH));
+        this.batcher = new UdpBatcher(udpSender, invoker, timer, maxDatagramSize,
+                config.getIntProperties(Config.CONFIG_UDP_BATCH_LINGER));
 
         this.tcpListener = new TcpListener(this);
         this.tcpListener.start();
 
         this.udpListener = new UdpListener(this);
         this.udpListener.start();
-
-        this.invoker = new NetworkInvoker();
-        this.invoker.start();
     }
 
     public void exit() {
@@ -78,8 +150,15 @@ public class ChatNI {
             tcpListener.close();
         if (udpListener != null)
             udpListener.close();
-        if (udpListener != null)
+        for (InetAddress addr : sessions.keySet()) {
+            closeSession(addr);
+        }
+        if (timer != null)
+            timer.stop();
+        if (invoker != null)
             invoker.close();
+        if (udpSender != null)
+            udpSender.close();
     }
 
     public ArrayList<InetAddress> getNetworkBroadcastAddresses() throws TechnicalException {
@@ -92,34 +171,178 @@ public class ChatNI {
     }
 
     /**
-     * Execute controller method when received packet
-     * Invalid packet are dropped
+     * Say if a datagram uses the binary codec
+     *
+     * @param data datagram (read mode)
+     * @return true for binary, false for JSON
+     */
+    public static boolean isBinary(ByteBuffer data) {
+        return data.hasRemaining() && data.get(data.position()) == PacketParserBinary.MAGIC;
+    }
+
+    /**
+     * Parse a received datagram
+     * Thread safe, called by decoder threads
      *
-     * @param packet incoming packet
+     * @param data datagram (read mode), consumed
+     * @param from sender
+     * @return packet, or null for a fragment of an incomplete packet
+     * @throws PacketException when datagram isn't a valid packet
      */
-    public void processPacket(DatagramPacket packet) {
+    public Packet decode(ByteBuffer data, InetAddress from) throws PacketException {
+        if (data.hasRemaining() && data.get(data.position()) == UdpBatcher.MAGIC) {
+            return decodeBatch(data, from);
+        }
+        if (data.hasRemaining() && data.get(data.position()) == Fragmenter.MAGIC) {
+            data = reassembler.add(from, data);
+            if (data == null) {
+                return null;
+            }
+        }
+        return (isBinary(data) ? binaryParser : parser).read(data);
+    }
 
-        String data = NetworkTools.getString(packet);
-        l.debug("Processing incomming packet : " + data);
+    /**
+     * Parse packets of a batch
+     *
+     * @param data batch (read mode), consumed
+     * @param from sender
+     * @return packets of the batch
+     * @throws PacketException when a packet of the batch isn't valid
+     * @see UdpBatcher
+     */
+    private PacketBatch decodeBatch(ByteBuffer data, InetAddress from) throws PacketException {
+        data.get();
+        PacketBatch packets = new PacketBatch();
+        while (data.hasRemaining()) {
+            if (data.remaining() < 2) {
+                throw new PacketException("Lot de paquets tronqué", null);
+            }
+            int length = data.getShort() & 0xFFFF;
+            if (length > data.remaining()) {
+                throw new PacketException("Lot de paquets tronqué", null);
+            }
+            ByteBuffer inner = data.slice();
+            inner.limit(length);
+            data.position(data.position() + length);
+            if (inner.hasRemaining() && inner.get(0) == UdpBatcher.MAGIC) {
+                throw new PacketException("Lot de paquets imbriqué", null);
+            }
+            boolean binary = isBinary(inner);
+            Packet p = decode(inner, from);
+            if (p != null) {
+                packets.add(p, binary);
+            }
+        }
+        return packets;
+    }
 
+    /**
+     * Execute controller method when received packet
+     * Called by the dispatcher thread, in reception order
+     *
+     * @param message decoded packet
+     * @param addr    remote entity
+     * @param binary  true if packet used the binary codec
+     */
+    public void processPacket(Packet message, InetAddress addr, boolean binary) {
+        if (message instanceof PacketBatch) {
+            PacketBatch packets = (PacketBatch) message;
+            for (int i = 0; i < packets.size(); i++) {
+                processPacket(packets.get(i), addr, packets.isBinary(i));
+            }
+            return;
+        }
+        l.debug("Processing incomming packet from " + addr + " : " + message);
         try {
-            Packet message = parser.read(data);
             if (message instanceof Hello) {
-                this.controller.processHello(new RemoteUser(((Hello) message).getUserName(), packet.getAddress()));
+                Hello hello = (Hello) message;
+                openSession(addr, hello.getCapabilities(), hello.getFirstNumber());
+                this.controller.processHello(new RemoteUser(hello.getUserName(), addr, hello.getCapabilities()));
             } else if (message instanceof HelloAck) {
-                this.controller.processHelloAck(new RemoteUser(((HelloAck) message).getUserName(), packet.getAddress()));
+                HelloAck helloAck = (HelloAck) message;
+                openSession(addr, helloAck.getCapabilities(), helloAck.getFirstNumber());
+                this.controller.processHelloAck(new RemoteUser(helloAck.getUserName(), addr, helloAck.getCapabilities()));
             } else if (message instanceof Goodbye) {
-                this.controller.processGoodBye(packet.getAddress());
+                closeSession(addr);
+                this.controller.processGoodBye(addr);
             } else if (message instanceof Message) {
-                this.controller.processMessage((Message) message, packet.getAddress());
+                Message m = (Message) message;
+                PeerSession session = getSession(addr);
+                if (m.getAck() != null) {
+                    session.acknowledge(m.getAck(), m.getSack());
+                }
+                if (!session.isSelectiveAck()) {
+                    sendUnicast(new MessageAck(m.getMessageNumber()), addr, binary ? binaryParser : parser, false);
+                    if (!session.receive(m)) {
+                        l.debug("Drop duplicated message " + m.getMessageNumber() + " from " + addr);
+                    }
+                } else if (session.receive(m)) {
+                    MessageAck ack = session.delayAck(binary);
+                    if (ack != null) {
+                        sendUnicast(ack, addr, binary ? binaryParser : parser, false);
+                    }
+                } else {
+                    l.debug("Drop duplicated message " + m.getMessageNumber() + " from " + addr);
+                    sendUnicast(new MessageAck(m.getMessageNumber()), addr, binary ? binaryParser : parser, false);
+                }
             } else if (message instanceof MessageAck) {
-                this.controller.processMessageAck((MessageAck) message, packet.getAddress());
+                MessageAck ack = (MessageAck) message;
+                PeerSession session = sessions.get(addr);
+                if (session != null) {
+                    session.acknowledge(ack.getMessageNumber(), ack.getSack());
+                }
             }
-        } catch (PacketException e) {
-            l.error("Drop invalid packet : " + data, e);
+        } catch (TechnicalException e) {
+            l.error("Fail to acknowledge packet from " + addr, e);
+        } catch (LogicalException e) {
+            l.error("Fail to acknowledge packet from " + addr, e);
         }
     }
 
+    /**
+     * Deliver a new message, in order
+     *
+     * @param m    received message
+     * @param addr remote entity
+     */
+    void deliverMessage(Message m, InetAddress addr) {
+        this.controller.processMessage(m, addr);
+    }
+
+    /**
+     * Send delayed ack of received messages
+     *
+     * @param ack    ack of received messages
+     * @param addr   remote entity
+     * @param binary true to use the binary codec
+     */
+    void sendAck(MessageAck ack, InetAddress addr, boolean binary) {
+        try {
+            sendUnicast(ack, addr, binary ? binaryParser : parser, false);
+        } catch (TechnicalException e) {
+            l.error("Fail to acknowledge messages from " + addr, e);
+        }
+    }
+
+    /**
+     * Message acknowledged by remote user
+     *
+     * @param m local message
+     */
+    void processMessageDelivered(MessageNetwork m) {
+        this.controller.processMessageAck(m);
+    }
+
+    /**
+     * Message never acknowledged by remote user
+     *
+     * @param m local message
+     */
+    void processMessageFailed(MessageNetwork m) {
+        this.controller.processMessageFailed(m);
+    }
+
     /**
      * Process remote file
      * @param f remote file
@@ -136,7 +359,9 @@ public class ChatNI {
      * @throws LogicalException
      */
     public void sendHello(User u) throws TechnicalException, LogicalException {
-        Packet p = new Hello(u.getName());
+        Hello p = new Hello(u.getName());
+        p.setCapabilities(CAPABILITIES);
+        p.setFirstNumber(firstNumber);
         sendBroadcast(p);
     }
 
@@ -148,8 +373,10 @@ public class ChatNI {
      * @throws LogicalException
      */
     public void sendHelloAck(User from, User to) throws TechnicalException, LogicalException {
-        Packet p = new HelloAck(from.getName());
-        sendUnicast(p, to.getIp());
+        HelloAck p = new HelloAck(from.getName());
+        p.setCapabilities(CAPABILITIES);
+        p.setFirstNumber(firstNumber);
+        sendUnicast(p, to.getIp(), parser, canFragment(to));
     }
 
     /**
@@ -163,52 +390,172 @@ public class ChatNI {
 
     /**
      * Send message to user u
+     * Message is sent again until acknowledged, controller is notified of delivery or failure
      * @param u remote entity
-     * @param message message to send
+     * @param m message to send
      * @throws TechnicalException
      * @throws LogicalException
      */
-    public void sendMessage(User u, String message) throws TechnicalException, LogicalException {
-        Packet p = new Message(Message.getCountMessage(), message);
-        sendUnicast(p, u.getIp());
+    public void sendMessage(User u, MessageNetwork m) throws TechnicalException, LogicalException {
+        PeerSession session = getSession(u.getIp());
+        Message p = new Message(session.nextNumber(), m.getMessage());
+        MessageAck ack = session.takeAck();
+        if (ack != null) {
+            p.setAck(ack.getMessageNumber());
+            p.setSack(ack.getSack());
+        }
+        l.trace("Send packet " + p + " to " + u.getIp());
+        DatagramPacket[] dps = encode(p, u.getIp(), getParser(u), canFragment(u));
+        session.send(m, p.getMessageNumber(), dps);
     }
 
     /**
-     * send packet MessageAck to user u
+     * send file f to user u
+     * Transfer is resumable (and split on several connections) when remote user supports it
      * @param u remote entity
-     * @param messageId message id to ack
+     * @param f local file to send
+     * @throws LogicalException when too many files are already waiting to be sent
+     */
+    public void sendFile(RemoteUser u, File f) throws LogicalException {
+        TcpSenderCommand cmd = new TcpSenderCommand(f, u.getIp(),
+                u.hasCapability(Capabilities.RESUME), u.hasCapability(Capabilities.PARALLEL));
+        if (!this.invoker.addCommand(cmd)) {
+            throw new LogicalException("Impossible d'envoyer " + f.getName() + " : trop de fichiers en attente d'envoi");
+        }
+    }
+
+    private void sendUnicast(Packet p, InetAddress addr, PacketParser parser, boolean fragment) throws TechnicalException {
+        l.trace("Send packet " + p + " to " + addr);
+        transmit(encode(p, addr, parser, fragment), getLane(p));
+    }
+
+    /**
+     * Serialize a packet in a datagram
+     *
+     * @param p      packet
+     * @param addr   destination
+     * @param parser   codec
+     * @param fragment true to split packets bigger than the maximum datagram size
+     * @return datagrams
      * @throws TechnicalException
-     * @throws LogicalException
      */
-    public void sendMessageAck(User u, int messageId) throws TechnicalException, LogicalException {
-        Packet p = new MessageAck(messageId);
-        sendUnicast(p, u.getIp());
+    private DatagramPacket[] encode(Packet p, InetAddress addr, PacketParser parser, boolean fragment) throws TechnicalException {
+        ByteBuffer buf = SEND_BUFFER.get();
+        buf.clear();
+        parser.write(p, buf);
+        buf.flip();
+        if (fragment && buf.remaining() > maxDatagramSize) {
+            return Fragmenter.split(buf, fragmentIds.incrementAndGet(), maxDatagramSize, addr);
+        }
+        return new DatagramPacket[]{NetworkTools.getDatagramPacket(buf, addr)};
     }
 
     /**
-     * send file f to user u
-     * @param u remote entity
-     * @param f local file to send
+     * Queue datagrams on the invoker
+     *
+     * @param dps  datagrams to send
+     * @param lane invoker lane
      */
-    public void sendFile(User u, File f) {
-        TcpSenderCommand cmd = new TcpSenderCommand(f, u.getIp());
-        this.invoker.addCommand(cmd);
+    void transmit(DatagramPacket[] dps, NetworkCommand.Lane lane) {
+        for (DatagramPacket dp : dps) {
+            if (batcher.offer(dp, lane)) {
+                continue;
+            }
+            this.invoker.addCommand(new UdpSenderCommand(udpSender, dp, lane));
+        }
     }
 
-    private void sendUnicast(Packet p, InetAddress addr) throws TechnicalException {
-        l.trace("Send packet " + p + " to " + addr);
-        String data = parser.write(p);
-        if (data != null) {
-            UdpSenderCommand cmd = new UdpSenderCommand(NetworkTools.getDatagramPacket(data, addr));
-            this.invoker.addCommand(cmd);
-        } else {
-            l.error("Impossible de générer le JSON : " + p);
-            throw new TechnicalException("Impossible de générer le JSON : " + p);
+    /**
+     * Get (or create) session with a remote user
+     *
+     * @param addr remote address
+     * @return session
+     */
+    private PeerSession getSession(InetAddress addr) {
+        PeerSession session = sessions.get(addr);
+        if (session == null) {
+            session = new PeerSession(addr, this, timer, sessionConfig, firstNumber);
+            PeerSession previous = sessions.putIfAbsent(addr, session);
+            if (previous != null) {
+                session = previous;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Forget session with a remote user (left or restarted)
+     *
+     * @param addr remote address
+     */
+    private void closeSession(InetAddress addr) {
+        PeerSession session = sessions.remove(addr);
+        if (session != null) {
+            session.close();
+        }
+        batcher.disable(addr);
+    }
+
+    /**
+     * Start a new session with a remote user (joined or restarted)
+     *
+     * @param addr         remote address
+     * @param capabilities capabilities announced by remote user
+     * @param firstNumber  number of the first message of remote user, null if not announced
+     */
+    private void openSession(InetAddress addr, List<String> capabilities, Integer firstNumber) {
+        closeSession(addr);
+        if (firstNumber != null) {
+            getSession(addr).expect(firstNumber);
+        }
+        if (capabilities == null) {
+            return;
+        }
+        if (batch && capabilities.contains(Capabilities.BATCH)) {
+            batcher.enable(addr);
+        }
+        if (capabilities.contains(Capabilities.SACK)) {
+            getSession(addr).setSelectiveAck(true);
         }
     }
 
     private void sendBroadcast(Packet p) throws TechnicalException {
-        this.sendUnicast(p, broadcastAddr);
+        this.sendUnicast(p, broadcastAddr, parser, false);
+    }
+
+    /**
+     * Get packet parser for unicast packets to user u
+     * Handshake and broadcast packets always use JSON, which every peer understands
+     *
+     * @param u remote entity
+     * @return binary parser when remote user supports it, JSON parser otherwise
+     */
+    private PacketParser getParser(User u) {
+        if (u instanceof RemoteUser && ((RemoteUser) u).hasCapability(Capabilities.BINARY)) {
+            return binaryParser;
+        }
+        return parser;
+    }
+
+    /**
+     * Say if packets to user u can be fragmented
+     *
+     * @param u remote entity
+     * @return true when remote user reassembles fragments
+     */
+    private boolean canFragment(User u) {
+        return u instanceof RemoteUser && ((RemoteUser) u).hasCapability(Capabilities.FRAGMENT);
+    }
+
+    /**
+     * Get invoker lane of a packet
+     * Chat messages have their own lane, all other packets are control packets
+     *
+     * @param p packet to send
+     * @return lane
+     */
+    private NetworkCommand.Lane getLane(Packet p) {
+        return (p instanceof Message) ? NetworkCommand.Lane.CHAT : NetworkCommand.Lane.CONTROL;
     }
 
 }
@@ -0,0 +1,87 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni;
+
+import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.utils.NetworkTools;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Fragmenter class
+ * Split an encoded packet bigger than the maximum datagram size in fragments.
+ * <p/>
+ * Fragment : MAGIC (1 byte), fragment id (int), index (short), count (short),
+ * total length (int), offset of data (int), then data.
+ *
+ * @see com.insatoulouse.chatsystem.ni.Reassembler
+ */
+final class Fragmenter {
+
+    /**
+     * First byte of a fragment, neither JSON nor binary packet
+     */
+    static final byte MAGIC = (byte) 0xC6;
+
+    static final int HEADER_SIZE = 17;
+
+    /**
+     * Maximum number of fragments of a packet
+     */
+    static final int MAX_FRAGMENTS = 0xFFFF;
+
+    private Fragmenter() {
+    }
+
+    /**
+     * Split a packet
+     *
+     * @param data            encoded packet (read mode), consumed
+     * @param id              fragment id, unique for the sender
+     * @param maxDatagramSize maximum size of a fragment, header included
+     * @param addr            destination
+     * @return datagrams
+     * @throws TechnicalException when packet needs too many fragments
+     */
+    static DatagramPacket[] split(ByteBuffer data, int id, int maxDatagramSize, InetAddress addr) throws TechnicalException {
+        int total = data.remaining();
+        int chunk = maxDatagramSize - HEADER_SIZE;
+        int count = (total + chunk - 1) / chunk;
+        if (chunk <= 0 || count > MAX_FRAGMENTS) {
+            throw new TechnicalException("Impossible de fragmenter le Packet : " + total + " octets");
+        }
+        DatagramPacket[] fragments = new DatagramPacket[count];
+        ByteBuffer fragment = ByteBuffer.allocate(maxDatagramSize);
+        for (int i = 0; i < count; i++) {
+            int offset = data.position() - (data.limit() - total);
+            int length = Math.min(chunk, data.remaining());
+            fragment.clear();
+            fragment.put(MAGIC).putInt(id).putShort((short) i).putShort((short) count).putInt(total).putInt(offset);
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + length);
+            fragment.put(slice);
+            data.position(data.position() + length);
+            fragment.flip();
+            fragments[i] = NetworkTools.getDatagramPacket(fragment, addr);
+        }
+        return fragments;
+    }
+}
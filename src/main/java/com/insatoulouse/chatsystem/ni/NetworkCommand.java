@@ -24,4 +24,30 @@ import com.insatoulouse.chatsystem.exception.TechnicalException;
 public interface NetworkCommand {
 
     public void execute() throws TechnicalException;
+
+    /**
+     * Lane used by NetworkInvoker to execute the command
+     *
+     * @return lane of the command
+     */
+    public Lane getLane();
+
+    /**
+     * Lanes available for network commands
+     * Each lane has its own workers, so a bulk transfer never delays control packets.
+     */
+    public enum Lane {
+        /**
+         * Hello, HelloAck, Goodbye, MessageAck
+         */
+        CONTROL,
+        /**
+         * Chat messages
+         */
+        CHAT,
+        /**
+         * File transfers
+         */
+        BULK
+    }
 }
@@ -19,75 +19,145 @@
 package com.insatoulouse.chatsystem.ni;
 
 import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.utils.Config;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * NetworkInvoker class
+ * Execute NetworkCommand on one fixed pool of worker threads per lane, each fed by a bounded queue.
+ * Lanes are isolated : file transfers can't take the workers needed by control and chat packets.
+ * When the queue of a control or chat lane is full, the thread which adds the command executes it itself :
+ * producers are slowed down instead of losing commands. A file transfer can last minutes, so it is never
+ * run by the caller (e.g. the Swing thread) : a full bulk queue rejects the command.
+ *
+ * @see com.insatoulouse.chatsystem.ni.NetworkCommand.Lane
  */
-public class NetworkInvoker extends Thread {
+public class NetworkInvoker {
 
     private static final Logger l = LogManager.getLogger(NetworkInvoker.class.getName());
-    private static final Integer MAX_COMMAND = 5;
-    private final LinkedBlockingQueue<NetworkCommand> commands = new LinkedBlockingQueue<NetworkCommand>();
-    private Integer onRun = 0;
-    private Boolean isRunning = true;
 
-    public NetworkInvoker() {
+    /**
+     * Max time to wait for pending commands when closing (ms)
+     */
+    private static final long CLOSE_TIMEOUT = 2000;
+
+    private final Map<NetworkCommand.Lane, ThreadPoolExecutor> executors = new EnumMap<NetworkCommand.Lane, ThreadPoolExecutor>(NetworkCommand.Lane.class);
+
+    public NetworkInvoker() throws TechnicalException {
+        for (NetworkCommand.Lane lane : NetworkCommand.Lane.values()) {
+            String name = lane.name().toLowerCase();
+            int threads = Config.getInstance().getIntProperties(String.format(Config.CONFIG_INVOKER_THREADS, name));
+            int queue = Config.getInstance().getIntProperties(String.format(Config.CONFIG_INVOKER_QUEUE, name));
+            executors.put(lane, new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queue),
+                    new InvokerThreadFactory(name),
+                    lane == NetworkCommand.Lane.BULK
+                            ? new ThreadPoolExecutor.AbortPolicy() : new ThreadPoolExecutor.CallerRunsPolicy()));
+        }
+    }
+
+    /**
+     * Start worker threads
+     */
+    public void start() {
+        l.trace("Start NetworkInvoker");
+        for (ThreadPoolExecutor executor : executors.values()) {
+            executor.prestartAllCoreThreads();
+        }
     }
 
     /**
-     * Main process of NetworkInvoker. It's run on a Thread
-     * and execute NetworkCommand into LinkedBlockingQueue sequensly.
+     * Add a command to execute
+     *
+     * @param command command to execute
+     * @return false if the command has been dropped (invoker closed or bulk queue full)
      */
-    public void run() {
-        while (isRunning) {
-            try {
-                final NetworkCommand cmd = commands.peek();
-
-                synchronized (onRun) {
-                    if (onRun < MAX_COMMAND && cmd != null) {
-
-                        onRun++;
-
-                        l.debug("New command executed :" + cmd);
-                        commands.poll();
-                        new Thread(new Runnable() {
-                            @Override
-                            public void run() {
-                                try {
-                                    cmd.execute();
-                                } catch (TechnicalException e) {
-                                    e.printStackTrace();
-                                }
-                                NetworkInvoker.this.endOfCommand();
-                            }
-                        }).start();
-                    } else {
-                        synchronized (this) {
-                            this.wait();
-                        }
-                    }
+    public boolean addCommand(final NetworkCommand command) {
+        ThreadPoolExecutor executor = executors.get(command.getLane());
+        if (executor.isShutdown()) {
+            l.warn("NetworkInvoker is closed, drop command : " + command);
+            return false;
+        }
+        try {
+            execute(executor, command);
+        } catch (RejectedExecutionException e) {
+            l.warn("Queue of lane " + command.getLane() + " is full, drop command : " + command);
+            return false;
+        }
+        return true;
+    }
+
+    private void execute(ThreadPoolExecutor executor, final NetworkCommand command) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                l.debug("New command executed :" + command);
+                try {
+                    command.execute();
+                } catch (TechnicalException e) {
+                    l.error("Fail to execute command " + command, e);
                 }
-            } catch (InterruptedException ignored) {
             }
-        }
+        });
     }
 
-    private synchronized void endOfCommand() {
-        onRun--;
-        this.interrupt();
+    /**
+     * Get number of commands waiting for a worker on a lane
+     *
+     * @param lane lane
+     * @return number of pending commands
+     */
+    public int getPendingCommands(NetworkCommand.Lane lane) {
+        return executors.get(lane).getQueue().size();
     }
 
-    public synchronized void addCommand(NetworkCommand command) {
-        commands.add(command);
-        this.interrupt();
+    /**
+     * Stop the invoker. Pending commands (e.g. Goodbye) are executed before leaving.
+     */
+    public void close() {
+        l.trace("Close NetworkInvoker");
+        for (ThreadPoolExecutor executor : executors.values()) {
+            executor.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        try {
+            for (ThreadPoolExecutor executor : executors.values()) {
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                if (!executor.awaitTermination(wait, TimeUnit.MILLISECONDS)) {
+                    l.warn("NetworkInvoker : pending commands dropped");
+                    executor.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            for (ThreadPoolExecutor executor : executors.values()) {
+                executor.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+        }
     }
 
-    public synchronized void close() {
-        isRunning = false;
-        this.interrupt();
+    /**
+     * Create named daemon threads for one lane of the invoker
+     */
+    private static class InvokerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final String lane;
+
+        public InvokerThreadFactory(String lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "NetworkInvoker-" + lane + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
     }
 }
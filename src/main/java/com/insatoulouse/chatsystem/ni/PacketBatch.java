@@ -0,0 +1,57 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni;
+
+import com.insatoulouse.chatsystem.model.network.Packet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PacketBatch class
+ * Packets received in one datagram, never sent as is
+ *
+ * @see com.insatoulouse.chatsystem.ni.udp.UdpBatcher
+ */
+class PacketBatch implements Packet {
+
+    private final List<Packet> packets = new ArrayList<Packet>();
+    private final List<Boolean> binary = new ArrayList<Boolean>();
+
+    void add(Packet p, boolean isBinary) {
+        packets.add(p);
+        binary.add(isBinary);
+    }
+
+    public int size() {
+        return packets.size();
+    }
+
+    public Packet get(int i) {
+        return packets.get(i);
+    }
+
+    /**
+     * @param i index of packet
+     * @return true if packet used the binary codec
+     */
+    public boolean isBinary(int i) {
+        return binary.get(i);
+    }
+}
@@ -0,0 +1,546 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni;
+
+import com.insatoulouse.chatsystem.exception.LogicalException;
+import com.insatoulouse.chatsystem.model.MessageNetwork;
+import com.insatoulouse.chatsystem.model.network.Message;
+import com.insatoulouse.chatsystem.model.network.MessageAck;
+import com.insatoulouse.chatsystem.utils.TimerWheel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PeerSession class
+ * Transport state with one remote user : message numbers, messages waiting for a MessageAck,
+ * retransmitted on timeout, with a window of messages in flight, and received messages
+ * (duplicates dropped, delivered in order unless a missing message takes longer than the gap timeout).
+ * With remote users supporting selective acks, received messages are acknowledged together.
+ * <p/>
+ * Retransmission timeout follows RFC 6298 (smoothed RTT, backoff, no sample from retransmitted messages).
+ *
+ * @see com.insatoulouse.chatsystem.ni.ChatNI
+ */
+class PeerSession {
+
+    private static final Logger l = LogManager.getLogger(PeerSession.class.getName());
+
+    /**
+     * Number of message numbers remembered to detect duplicates
+     */
+    private static final int RECEIVE_WINDOW = 1024;
+
+    /**
+     * Maximum distance between the missing message and messages held after it
+     */
+    private static final int REORDER_WINDOW = 256;
+
+    /**
+     * Order of message numbers, modulo 2^31
+     */
+    private static final Comparator<Outgoing> BY_NUMBER = new Comparator<Outgoing>() {
+        @Override
+        public int compare(Outgoing a, Outgoing b) {
+            return SequenceWindow.distance(a.number, b.number);
+        }
+    };
+
+    private final InetAddress addr;
+    private final ChatNI chatNI;
+    private final TimerWheel timer;
+    private final SessionConfig config;
+
+    /**
+     * Sent messages waiting for their ack, by message number
+     */
+    private final Map<Integer, Outgoing> inFlight = new HashMap<Integer, Outgoing>();
+
+    /**
+     * Messages waiting for room in the window
+     */
+    private final Queue<Outgoing> backlog = new ArrayDeque<Outgoing>();
+
+    /**
+     * Next local message number
+     */
+    private final AtomicInteger sequence;
+
+    /**
+     * Message numbers received from remote user, guarded by itself with reorder buffer and gap timer
+     */
+    private final SequenceWindow received = new SequenceWindow(RECEIVE_WINDOW);
+    private final ReorderBuffer reorder;
+    private TimerWheel.Timeout gapTimeout;
+
+    /**
+     * Messages in order, given to ChatNI once the received lock is released, guarded by received
+     * Only one thread at a time delivers them, so order is kept.
+     */
+    private final Queue<Message> ready = new ArrayDeque<Message>();
+    private boolean delivering = false;
+
+    /**
+     * Received messages waiting for their ack, guarded by received
+     */
+    private int pendingAcks = 0;
+    private boolean ackBinary;
+    private TimerWheel.Timeout ackTimeout;
+
+    /**
+     * True when remote user reads selective acks
+     */
+    private volatile boolean selectiveAck = false;
+
+    /**
+     * Smoothed RTT and its variation (micro seconds), -1 before first sample
+     */
+    private long srtt = -1;
+    private long rttvar = 0;
+
+    /**
+     * Current retransmission timeout (ms)
+     */
+    private long rto;
+    private boolean closed = false;
+
+    /**
+     * @param firstNumber number of the first local message, announced to remote user
+     */
+    PeerSession(InetAddress addr, ChatNI chatNI, TimerWheel timer, SessionConfig config, int firstNumber) {
+        this.addr = addr;
+        this.sequence = new AtomicInteger(firstNumber);
+        this.chatNI = chatNI;
+        this.timer = timer;
+        this.config = config;
+        this.rto = config.getInitialRto();
+        this.reorder = new ReorderBuffer(REORDER_WINDOW, new ReorderBuffer.Delivery() {
+            @Override
+            public void deliver(Message m) {
+                ready.add(m);
+            }
+        });
+    }
+
+    /**
+     * Set number of the first message of remote user, announced in its Hello or HelloAck.
+     * Without it, messages are ordered from the first one received.
+     *
+     * @param firstNumber number of the first message of remote user
+     */
+    void expect(int firstNumber) {
+        synchronized (received) {
+            received.start(firstNumber);
+            reorder.start(firstNumber);
+        }
+    }
+
+    /**
+     * Get a new message number
+     *
+     * @return message number, unique in the session
+     */
+    int nextNumber() {
+        return sequence.getAndIncrement() & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Process a received message
+     * New messages are given to ChatNI in order, on this thread or on the timer thread after a gap,
+     * without holding the session locks
+     *
+     * @param m received message
+     * @return false if message was already received
+     */
+    boolean receive(Message m) {
+        synchronized (received) {
+            if (closed || !received.accept(m.getMessageNumber())) {
+                return false;
+            }
+            reorder.offer(m);
+            armGapTimeout();
+        }
+        deliverReady();
+        return true;
+    }
+
+    /**
+     * Acknowledge received messages later : in the next message sent, after the ack delay,
+     * or now when enough messages wait for their ack
+     *
+     * @param binary true if received message used the binary codec
+     * @return ack to send now, or null
+     * @throws LogicalException
+     */
+    MessageAck delayAck(boolean binary) throws LogicalException {
+        synchronized (received) {
+            if (closed) {
+                return null;
+            }
+            pendingAcks++;
+            ackBinary = binary;
+            if (pendingAcks >= config.getAckEvery()) {
+                return takeAckLocked();
+            }
+            if (ackTimeout == null) {
+                ackTimeout = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        ackDelayExpired();
+                    }
+                }, config.getAckDelay());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Take the ack waiting to be sent, to piggyback it on a message sent now
+     *
+     * @return ack, or null when no message waits for its ack or outgoing messages wait for the window
+     * @throws LogicalException
+     */
+    MessageAck takeAck() throws LogicalException {
+        synchronized (this) {
+            if (!backlog.isEmpty() || inFlight.size() >= config.getWindow()) {
+                return null;
+            }
+        }
+        synchronized (received) {
+            return takeAckLocked();
+        }
+    }
+
+    /**
+     * Send a message reliably
+     *
+     * @param m      local message, notified when delivered or failed
+     * @param number message number
+     * @param packets encoded Message packet (several datagrams when fragmented)
+     */
+    void send(MessageNetwork m, int number, DatagramPacket[] packets) {
+        Outgoing o = new Outgoing(m, number, packets);
+        boolean failed;
+        synchronized (this) {
+            failed = closed;
+            if (!closed) {
+                if (inFlight.size() < config.getWindow()) {
+                    transmit(o);
+                } else {
+                    l.debug("Window full for " + addr + ", message " + number + " is delayed");
+                    backlog.add(o);
+                }
+            }
+        }
+        if (failed) {
+            chatNI.processMessageFailed(m);
+        }
+    }
+
+    /**
+     * Process ack of messages
+     * Duplicated acks are ignored
+     *
+     * @param number acknowledged message number, with every message before it when sack is not null
+     * @param sack   bit i set when message number + 2 + i is acknowledged too, may be null
+     */
+    void acknowledge(int number, Long sack) {
+        List<Outgoing> delivered = new ArrayList<Outgoing>();
+        synchronized (this) {
+            Outgoing o = inFlight.remove(number);
+            if (o != null) {
+                o.timeout.cancel();
+                if (o.attempts == 1) {
+                    sampleRtt(System.nanoTime() - o.sentAt);
+                }
+            }
+            if (sack != null) {
+                for (Iterator<Outgoing> it = inFlight.values().iterator(); it.hasNext(); ) {
+                    Outgoing before = it.next();
+                    if (SequenceWindow.distance(before.number, number) < 0) {
+                        it.remove();
+                        before.timeout.cancel();
+                        delivered.add(before);
+                    }
+                }
+                Collections.sort(delivered, BY_NUMBER);
+            }
+            if (o != null) {
+                delivered.add(o);
+            }
+            if (sack != null) {
+                int n = SequenceWindow.next(number);
+                for (long bits = sack; bits != 0; bits >>>= 1) {
+                    n = SequenceWindow.next(n);
+                    Outgoing after = (bits & 1) != 0 ? inFlight.remove(n) : null;
+                    if (after != null) {
+                        after.timeout.cancel();
+                        delivered.add(after);
+                    }
+                }
+            }
+            if (delivered.isEmpty()) {
+                return;
+            }
+            fillWindow();
+        }
+        for (Outgoing o : delivered) {
+            chatNI.processMessageDelivered(o.message);
+        }
+    }
+
+    void setSelectiveAck(boolean selectiveAck) {
+        this.selectiveAck = selectiveAck;
+    }
+
+    boolean isSelectiveAck() {
+        return selectiveAck;
+    }
+
+    /**
+     * Close the session, messages not acknowledged are failed
+     */
+    void close() {
+        List<Outgoing> failed = new ArrayList<Outgoing>();
+        synchronized (received) {
+            if (gapTimeout != null) {
+                gapTimeout.cancel();
+            }
+            if (ackTimeout != null) {
+                ackTimeout.cancel();
+            }
+        }
+        synchronized (this) {
+            closed = true;
+            for (Outgoing o : inFlight.values()) {
+                o.timeout.cancel();
+                failed.add(o);
+            }
+            failed.addAll(backlog);
+            inFlight.clear();
+            backlog.clear();
+        }
+        for (Outgoing o : failed) {
+            chatNI.processMessageFailed(o.message);
+        }
+    }
+
+    synchronized int getInFlight() {
+        return inFlight.size();
+    }
+
+    synchronized long getRto() {
+        return rto;
+    }
+
+    /**
+     * Start or stop waiting for a missing message
+     * Must hold the received lock
+     */
+    private void armGapTimeout() {
+        if (reorder.hasGap()) {
+            if (gapTimeout == null) {
+                gapTimeout = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        skipGap();
+                    }
+                }, config.getGapTimeout());
+            }
+        } else if (gapTimeout != null) {
+            gapTimeout.cancel();
+            gapTimeout = null;
+        }
+    }
+
+    private void skipGap() {
+        synchronized (received) {
+            if (closed) {
+                return;
+            }
+            l.debug("Missing message from " + addr + ", deliver next ones");
+            gapTimeout = null;
+            reorder.skipGap();
+            armGapTimeout();
+        }
+        deliverReady();
+    }
+
+    /**
+     * Give messages in order to ChatNI, unless another thread is already doing it
+     * Must not hold the received lock
+     */
+    private void deliverReady() {
+        synchronized (received) {
+            if (delivering || ready.isEmpty()) {
+                return;
+            }
+            delivering = true;
+        }
+        List<Message> batch = new ArrayList<Message>();
+        try {
+            while (true) {
+                synchronized (received) {
+                    batch.addAll(ready);
+                    ready.clear();
+                    if (batch.isEmpty()) {
+                        delivering = false;
+                        return;
+                    }
+                }
+                for (Message m : batch) {
+                    chatNI.deliverMessage(m, addr);
+                }
+                batch.clear();
+            }
+        } catch (RuntimeException e) {
+            synchronized (received) {
+                delivering = false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Build the ack of received messages, none are waiting for it afterwards
+     * Must hold the received lock
+     *
+     * @return ack, or null when no message waits for its ack
+     */
+    private MessageAck takeAckLocked() throws LogicalException {
+        if (pendingAcks == 0) {
+            return null;
+        }
+        pendingAcks = 0;
+        if (ackTimeout != null) {
+            ackTimeout.cancel();
+            ackTimeout = null;
+        }
+        MessageAck ack = new MessageAck(received.getContiguous());
+        ack.setSack(received.getSack());
+        return ack;
+    }
+
+    private void ackDelayExpired() {
+        MessageAck ack;
+        boolean binary;
+        try {
+            synchronized (received) {
+                if (closed) {
+                    return;
+                }
+                ack = takeAckLocked();
+                binary = ackBinary;
+            }
+        } catch (LogicalException e) {
+            l.error("Fail to acknowledge messages from " + addr, e);
+            return;
+        }
+        if (ack != null) {
+            chatNI.sendAck(ack, addr, binary);
+        }
+    }
+
+    private void timeout(Outgoing o) {
+        synchronized (this) {
+            if (closed || inFlight.get(o.number) != o) {
+                return;
+            }
+            if (o.attempts <= config.getRetries()) {
+                rto = Math.min(rto * 2, config.getMaxRto());
+                l.debug("Retransmit message " + o.number + " to " + addr + " (rto " + rto + " ms)");
+                transmit(o);
+                return;
+            }
+            inFlight.remove(o.number);
+            fillWindow();
+        }
+        l.warn("Message " + o.number + " to " + addr + " not acknowledged");
+        chatNI.processMessageFailed(o.message);
+    }
+
+    /**
+     * Send messages of the backlog while the window is not full
+     * Must hold the lock
+     */
+    private void fillWindow() {
+        while (!closed && inFlight.size() < config.getWindow() && !backlog.isEmpty()) {
+            transmit(backlog.poll());
+        }
+    }
+
+    /**
+     * Send (or resend) a message and arm its timer
+     * Must hold the lock
+     */
+    private void transmit(final Outgoing o) {
+        o.attempts++;
+        o.sentAt = System.nanoTime();
+        inFlight.put(o.number, o);
+        chatNI.transmit(o.packets, NetworkCommand.Lane.CHAT);
+        o.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timeout(o);
+            }
+        }, rto);
+    }
+
+    /**
+     * Update RTT estimation
+     * Must hold the lock
+     *
+     * @param rttNanos measured round trip
+     */
+    private void sampleRtt(long rttNanos) {
+        long r = TimeUnit.NANOSECONDS.toMicros(rttNanos);
+        if (srtt < 0) {
+            srtt = r;
+            rttvar = r / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - r)) / 4;
+            srtt = (7 * srtt + r) / 8;
+        }
+        long millis = TimeUnit.MICROSECONDS.toMillis(srtt + 4 * rttvar + 999);
+        rto = Math.max(config.getMinRto(), Math.min(millis, config.getMaxRto()));
+    }
+
+    /**
+     * Message sent and not acknowledged yet
+     */
+    private static class Outgoing {
+        private final MessageNetwork message;
+        private final int number;
+        private final DatagramPacket[] packets;
+        private int attempts = 0;
+        private long sentAt;
+        private TimerWheel.Timeout timeout;
+
+        private Outgoing(MessageNetwork message, int number, DatagramPacket[] packets) {
+            this.message = message;
+            this.number = number;
+            this.packets = packets;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni;
+
+import com.insatoulouse.chatsystem.exception.PacketException;
+import com.insatoulouse.chatsystem.utils.TimerWheel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reassembler class
+ * Rebuild packets from their fragments. Thread safe, fragments of a packet can be added from several threads.
+ * Memory used by incomplete packets is bounded, and a packet not completed in time is forgotten.
+ *
+ * @see com.insatoulouse.chatsystem.ni.Fragmenter
+ */
+class Reassembler {
+
+    private static final Logger l = LogManager.getLogger(Reassembler.class.getName());
+
+    private final ConcurrentMap<Key, Partial> partials = new ConcurrentHashMap<Key, Partial>();
+    private final TimerWheel timer;
+    private final long maxMemory;
+    private final int timeout;
+    private final AtomicLong memory = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Create a reassembler
+     *
+     * @param timer     timer forgetting incomplete packets
+     * @param maxMemory maximum bytes of incomplete packets
+     * @param timeout   time to receive every fragment of a packet (ms)
+     */
+    Reassembler(TimerWheel timer, long maxMemory, int timeout) {
+        this.timer = timer;
+        this.maxMemory = maxMemory;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Add a fragment
+     *
+     * @param from     sender
+     * @param fragment fragment (read mode), consumed
+     * @return complete packet once every fragment is received, null otherwise
+     * @throws PacketException when fragment is invalid
+     */
+    ByteBuffer add(InetAddress from, ByteBuffer fragment) throws PacketException {
+        if (fragment.remaining() < Fragmenter.HEADER_SIZE || fragment.get() != Fragmenter.MAGIC) {
+            throw new PacketException("Fragment invalide", null);
+        }
+        int id = fragment.getInt();
+        int index = fragment.getShort() & 0xFFFF;
+        int count = fragment.getShort() & 0xFFFF;
+        int total = fragment.getInt();
+        int offset = fragment.getInt();
+        int length = fragment.remaining();
+        if (index >= count || total < 0 || offset < 0 || offset > total - length) {
+            throw new PacketException("Fragment invalide : " + index + "/" + count + " " + offset + "+" + length + "/" + total, null);
+        }
+
+        final Key key = new Key(from, id);
+        Partial p = partials.get(key);
+        if (p == null) {
+            if (memory.addAndGet(total) > maxMemory) {
+                memory.addAndGet(-total);
+                dropped.incrementAndGet();
+                l.warn("Reassembly memory full, drop fragment of " + total + " bytes from " + from);
+                return null;
+            }
+            final Partial created = new Partial(count, total);
+            created.timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expire(key, created);
+                }
+            }, timeout);
+            p = partials.putIfAbsent(key, created);
+            if (p == null) {
+                p = created;
+            } else {
+                created.timeout.cancel();
+                memory.addAndGet(-total);
+            }
+        }
+
+        synchronized (p) {
+            if (p.done || p.count != count || p.data.length != total) {
+                return null;
+            }
+            if (!p.received.get(index)) {
+                fragment.get(p.data, offset, length);
+                p.received.set(index);
+            }
+            if (p.received.cardinality() < count) {
+                return null;
+            }
+            p.done = true;
+        }
+        if (partials.remove(key, p)) {
+            p.timeout.cancel();
+            memory.addAndGet(-total);
+        }
+        return ByteBuffer.wrap(p.data);
+    }
+
+    /**
+     * @return bytes used by incomplete packets
+     */
+    long getMemory() {
+        return memory.get();
+    }
+
+    /**
+     * @return fragments dropped because memory was full
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    private void expire(Key key, Partial p) {
+        if (partials.remove(key, p)) {
+            memory.addAndGet(-p.data.length);
+            l.debug("Incomplete packet from " + key.from + " expired");
+        }
+    }
+
+    /**
+     * Packet being reassembled
+     */
+    private static class Partial {
+        private final int count;
+        private final byte[] data;
+        private final BitSet received;
+        private boolean done = false;
+        private TimerWheel.Timeout timeout;
+
+        private Partial(int count, int total) {
+            this.count = count;
+            this.data = new byte[total];
+            this.received = new BitSet(count);
+        }
+    }
+
+    /**
+     * Sender and fragment id
+     */
+    private static class Key {
+        private final InetAddress from;
+        private final int id;
+
+        private Key(InetAddress from, int id) {
+            this.from = from;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return id == key.id && from.equals(key.from);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * from.hashCode() + id;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni;
+
+import com.insatoulouse.chatsystem.model.network.Message;
+
+/**
+ * ReorderBuffer class
+ * Hold messages received after a gap, and deliver them in message number order.
+ * Messages are kept in a ring indexed by message number, so nothing is allocated per message.
+ * Duplicates must be filtered before (see SequenceWindow). Not thread safe.
+ *
+ * @see com.insatoulouse.chatsystem.ni.SequenceWindow
+ */
+class ReorderBuffer {
+
+    private final Message[] slots;
+    private final int mask;
+    private final Delivery delivery;
+    private boolean started = false;
+
+    /**
+     * Next message number to deliver
+     */
+    private int expected;
+
+    /**
+     * Number of messages held
+     */
+    private int held = 0;
+
+    /**
+     * Create a buffer
+     *
+     * @param size     maximum distance between expected and held messages, rounded up to a power of 2
+     * @param delivery receiver of messages in order
+     */
+    ReorderBuffer(int size, Delivery delivery) {
+        int n = Integer.highestOneBit(Math.max(size, 2));
+        if (n < size) {
+            n <<= 1;
+        }
+        this.slots = new Message[n];
+        this.mask = n - 1;
+        this.delivery = delivery;
+    }
+
+    /**
+     * Set the first message number, before any message is offered
+     * Otherwise numbers start at the first message offered.
+     *
+     * @param first number of the first message
+     */
+    void start(int first) {
+        if (!started) {
+            started = true;
+            expected = first;
+        }
+    }
+
+    /**
+     * Add a new message
+     * Messages before the expected one (gap already skipped) are delivered at once.
+     *
+     * @param m received message, not a duplicate
+     */
+    void offer(Message m) {
+        int n = m.getMessageNumber();
+        if (!started) {
+            started = true;
+            expected = n;
+        }
+        int d = SequenceWindow.distance(n, expected);
+        if (d < 0) {
+            delivery.deliver(m);
+            return;
+        }
+        if (d >= slots.length) {
+            skip(d - slots.length + 1);
+        }
+        slots[n & mask] = m;
+        held++;
+        drain();
+    }
+
+    /**
+     * Give up waiting for missing messages : deliver held messages up to the next gap
+     */
+    void skipGap() {
+        if (held == 0) {
+            return;
+        }
+        while (slots[expected & mask] == null) {
+            expected = SequenceWindow.next(expected);
+        }
+        drain();
+    }
+
+    /**
+     * @return true when messages are waiting for a missing one
+     */
+    boolean hasGap() {
+        return held > 0;
+    }
+
+    /**
+     * Move expected number forward, delivering held messages on the way
+     *
+     * @param count number of message numbers to skip
+     */
+    private void skip(int count) {
+        for (int i = 0; i < count && held > 0; i++) {
+            int slot = (expected + i) & mask;
+            if (slots[slot] != null) {
+                Message m = slots[slot];
+                slots[slot] = null;
+                held--;
+                delivery.deliver(m);
+            }
+        }
+        expected = (expected + count) & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Deliver messages from expected one while there is no gap
+     */
+    private void drain() {
+        int slot;
+        while (slots[slot = expected & mask] != null) {
+            Message m = slots[slot];
+            slots[slot] = null;
+            held--;
+            expected = SequenceWindow.next(expected);
+            delivery.deliver(m);
+        }
+    }
+
+    /**
+     * Receiver of ordered messages
+     */
+    interface Delivery {
+        void deliver(Message m);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni;
+
+import java.util.Arrays;
+
+/**
+ * SequenceWindow class
+ * Bitmap of the last message numbers received from one remote user, to detect duplicates.
+ * It also tracks the highest number received with nothing missing before it (from the first message
+ * of the session, or from the first one received when it isn't known), which is the cumulative ack.
+ * Message numbers are compared modulo 2^31, so the window keeps working when numbers wrap.
+ * Not thread safe.
+ */
+class SequenceWindow {
+
+    private static final int MASK = Integer.MAX_VALUE;
+
+    private final long[] bits;
+    private final int size;
+    private boolean empty = true;
+    private int highest;
+    private int contiguous;
+
+    /**
+     * Create a window
+     *
+     * @param size number of remembered message numbers, rounded up to a multiple of 64
+     *             (a power of 2 so that slots stay the same when numbers wrap)
+     */
+    SequenceWindow(int size) {
+        int n = Integer.highestOneBit(Math.max(size, 64));
+        if (n < size) {
+            n <<= 1;
+        }
+        this.size = n;
+        this.bits = new long[n / 64];
+    }
+
+    /**
+     * Distance between two message numbers, modulo 2^31
+     *
+     * @param a message number
+     * @param b message number
+     * @return a - b, negative when a is before b
+     */
+    static int distance(int a, int b) {
+        return ((a - b) << 1) >> 1;
+    }
+
+    /**
+     * Next message number, modulo 2^31
+     *
+     * @param n message number
+     * @return n + 1
+     */
+    static int next(int n) {
+        return (n + 1) & MASK;
+    }
+
+    /**
+     * Record a message number
+     *
+     * @param n received message number
+     * @return true if message is new, false if it is a duplicate or too old to tell
+     */
+    boolean accept(int n) {
+        if (empty) {
+            empty = false;
+            highest = n;
+            contiguous = n;
+            set(n);
+            return true;
+        }
+        int d = distance(n, highest);
+        if (d > 0) {
+            if (d >= size) {
+                Arrays.fill(bits, 0L);
+            } else {
+                for (int i = next(highest); i != n; i = next(i)) {
+                    clear(i);
+                }
+            }
+            highest = n;
+            set(n);
+            if (distance(highest, contiguous) >= size) {
+                // numbers out of the window count as received
+                contiguous = (highest - size) & MASK;
+            }
+            advance();
+            return true;
+        }
+        if (d <= -size || isSet(n)) {
+            return false;
+        }
+        set(n);
+        advance();
+        return true;
+    }
+
+    /**
+     * Set the number of the first message, before any message is accepted
+     * Otherwise the first message accepted starts the contiguous numbers.
+     *
+     * @param first number of the first message
+     */
+    void start(int first) {
+        if (empty) {
+            empty = false;
+            highest = (first - 1) & MASK;
+            contiguous = highest;
+            set(highest);
+        }
+    }
+
+    /**
+     * Say if a message number was received
+     *
+     * @param n message number
+     * @return true if received (or too old to tell)
+     */
+    boolean contains(int n) {
+        if (empty) {
+            return false;
+        }
+        int d = distance(n, highest);
+        return d <= 0 && (d <= -size || isSet(n));
+    }
+
+    /**
+     * @return highest received message number, undefined when nothing was received
+     */
+    int getHighest() {
+        return highest;
+    }
+
+    /**
+     * @return highest message number with every message before it received, undefined when nothing was received
+     */
+    int getContiguous() {
+        return contiguous;
+    }
+
+    /**
+     * Bitmap of the message numbers received after the contiguous ones (contiguous + 1 is missing)
+     *
+     * @return bit i set when message contiguous + 2 + i was received
+     */
+    long getSack() {
+        long sack = 0L;
+        if (empty) {
+            return sack;
+        }
+        int n = next(contiguous);
+        for (int i = 0; i < 64 && distance(highest, n) > 0; i++) {
+            n = next(n);
+            if (isSet(n)) {
+                sack |= 1L << i;
+            }
+        }
+        return sack;
+    }
+
+    /**
+     * Move contiguous forward over received numbers
+     */
+    private void advance() {
+        while (distance(highest, contiguous) > 0 && isSet(next(contiguous))) {
+            contiguous = next(contiguous);
+        }
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    private boolean isSet(int n) {
+        int i = n & (size - 1);
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private void set(int n) {
+        int i = n & (size - 1);
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    private void clear(int n) {
+        int i = n & (size - 1);
+        bits[i >>> 6] &= ~(1L << i);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni;
+
+import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.utils.Config;
+
+/**
+ * SessionConfig class
+ * Settings shared by every PeerSession, loaded once from config
+ *
+ * @see com.insatoulouse.chatsystem.ni.PeerSession
+ */
+class SessionConfig {
+
+    private final int initialRto;
+    private final int minRto;
+    private final int maxRto;
+    private final int retries;
+    private final int window;
+    private final int gapTimeout;
+    private final int ackDelay;
+    private final int ackEvery;
+
+    SessionConfig() throws TechnicalException {
+        Config config = Config.getInstance();
+        this.initialRto = config.getIntProperties(Config.CONFIG_RELIABLE_RTO);
+        this.minRto = config.getIntProperties(Config.CONFIG_RELIABLE_MIN_RTO);
+        this.maxRto = config.getIntProperties(Config.CONFIG_RELIABLE_MAX_RTO);
+        this.retries = config.getIntProperties(Config.CONFIG_RELIABLE_RETRIES);
+        this.window = config.getIntProperties(Config.CONFIG_RELIABLE_WINDOW);
+        this.gapTimeout = config.getIntProperties(Config.CONFIG_RELIABLE_GAP_TIMEOUT);
+        this.ackDelay = config.getIntProperties(Config.CONFIG_RELIABLE_ACK_DELAY);
+        this.ackEvery = config.getIntProperties(Config.CONFIG_RELIABLE_ACK_EVERY);
+    }
+
+    /**
+     * @return retransmission timeout before the first RTT sample (ms)
+     */
+    public int getInitialRto() {
+        return initialRto;
+    }
+
+    public int getMinRto() {
+        return minRto;
+    }
+
+    public int getMaxRto() {
+        return maxRto;
+    }
+
+    /**
+     * @return retransmissions of a message before it is failed
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return unacknowledged messages in flight per remote user
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return time waiting for a missing message before delivering the next ones (ms)
+     */
+    public int getGapTimeout() {
+        return gapTimeout;
+    }
+
+    /**
+     * @return time an ack waits for an outgoing message to travel with (ms)
+     */
+    public int getAckDelay() {
+        return ackDelay;
+    }
+
+    /**
+     * @return received messages acknowledged at once without waiting
+     */
+    public int getAckEvery() {
+        return ackEvery;
+    }
+}
\ No newline at end of file
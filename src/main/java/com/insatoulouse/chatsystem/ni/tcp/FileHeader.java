@@ -0,0 +1,272 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni.tcp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * FileHeader class
+ * Header sent before file data on a TCP connection :
+ * file name (DataOutput.writeUTF) and file size (DataOutput.writeLong)
+ * <p/>
+ * A resumable transfer replaces the size by RESUMABLE, followed by file size and fingerprint.
+ * Receiver then answers with the position from which data must be sent (long) and the chunk size (int),
+ * and data are sent as chunks : length (int), CRC32 (int), data.
+ * When every chunk is received, receiver answers with the number of bytes it has (long).
+ * <p/>
+ * A big file can be sent on several connections : each one uses RANGED instead of RESUMABLE,
+ * and adds range index (int) and range count (int) after the fingerprint.
+ * Range i starts at i * ceil(size / count).
+ */
+public class FileHeader {
+
+    /**
+     * Size field value of a resumable transfer
+     */
+    public static final long RESUMABLE = -1;
+
+    /**
+     * Size field value of one range of a resumable transfer on several connections
+     */
+    public static final long RANGED = -2;
+
+    /**
+     * Size of a chunk header : length and CRC32
+     */
+    public static final int CHUNK_HEADER_SIZE = 8;
+
+    /**
+     * Size of the UTF length prefix
+     */
+    private static final int UTF_LENGTH_SIZE = 2;
+
+    /**
+     * Size of the file size field
+     */
+    private static final int SIZE_SIZE = 8;
+
+    private final String name;
+    private final long size;
+    private final boolean resumable;
+    private final long fingerprint;
+    private final int rangeIndex;
+    private final int rangeCount;
+
+    /**
+     * Header of a simple transfer
+     *
+     * @param name file name
+     * @param size file size
+     */
+    public FileHeader(String name, long size) {
+        this(name, size, false, 0, 0, 1);
+    }
+
+    /**
+     * Header of a resumable transfer
+     *
+     * @param name        file name
+     * @param size        file size
+     * @param fingerprint fingerprint of the file, used to find a partial file
+     */
+    public FileHeader(String name, long size, long fingerprint) {
+        this(name, size, true, fingerprint, 0, 1);
+    }
+
+    /**
+     * Header of one range of a resumable transfer
+     *
+     * @param name        file name
+     * @param size        file size
+     * @param fingerprint fingerprint of the file, used to find a partial file
+     * @param rangeIndex  index of the range sent on this connection
+     * @param rangeCount  number of ranges (connections)
+     */
+    public FileHeader(String name, long size, long fingerprint, int rangeIndex, int rangeCount) {
+        this(name, size, true, fingerprint, rangeIndex, rangeCount);
+    }
+
+    private FileHeader(String name, long size, boolean resumable, long fingerprint, int rangeIndex, int rangeCount) {
+        this.name = name;
+        this.size = size;
+        this.resumable = resumable;
+        this.fingerprint = fingerprint;
+        this.rangeIndex = rangeIndex;
+        this.rangeCount = rangeCount;
+    }
+
+    /**
+     * Read a header from buffer (in read mode)
+     * If the header is not complete, buffer is left untouched
+     *
+     * @param buffer    data received
+     * @param maxRanges highest range count accepted
+     * @return header or null if more data is needed
+     * @throws IOException when header is invalid
+     */
+    public static FileHeader read(ByteBuffer buffer, int maxRanges) throws IOException {
+        if (buffer.remaining() < UTF_LENGTH_SIZE) {
+            return null;
+        }
+        int utfLength = buffer.getShort(buffer.position()) & 0xFFFF;
+        int length = UTF_LENGTH_SIZE + utfLength + SIZE_SIZE;
+        if (buffer.remaining() < length) {
+            return null;
+        }
+        long size = buffer.getLong(buffer.position() + UTF_LENGTH_SIZE + utfLength);
+        if (size == RESUMABLE) {
+            length += 2 * SIZE_SIZE;
+        } else if (size == RANGED) {
+            length += 2 * SIZE_SIZE + 8;
+        } else if (size < 0) {
+            throw new IOException("Invalid file size : " + size);
+        }
+        if (buffer.remaining() < length) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        String name = dis.readUTF();
+        long mode = dis.readLong();
+        if (mode >= 0) {
+            return new FileHeader(name, size);
+        }
+        size = dis.readLong();
+        if (size < 0) {
+            throw new IOException("Invalid file size : " + size);
+        }
+        long fingerprint = dis.readLong();
+        if (mode == RESUMABLE) {
+            return new FileHeader(name, size, fingerprint);
+        }
+        int index = dis.readInt();
+        int count = dis.readInt();
+        if (count <= 0 || count > maxRanges || index < 0 || index >= count) {
+            throw new IOException("Invalid range " + index + "/" + count);
+        }
+        if (size > Long.MAX_VALUE - count) {
+            throw new IOException("Invalid file size : " + size);
+        }
+        return new FileHeader(name, size, fingerprint, index, count);
+    }
+
+    /**
+     * Get length of a range
+     *
+     * @param size  file size
+     * @param index range index
+     * @param count range count
+     * @return number of bytes of the range
+     */
+    public static long getRangeLength(long size, int index, int count) {
+        long start = getRangeStart(size, index, count);
+        return Math.max(0, Math.min(getRangeBase(size, count), size - start));
+    }
+
+    /**
+     * Get first position of a range
+     *
+     * @param size  file size
+     * @param index range index
+     * @param count range count
+     * @return position in file
+     */
+    public static long getRangeStart(long size, int index, int count) {
+        return index * getRangeBase(size, count);
+    }
+
+    private static long getRangeBase(long size, int count) {
+        return (size + count - 1) / count;
+    }
+
+    /**
+     * Get header ready to be written on a channel
+     *
+     * @return buffer in read mode
+     * @throws IOException
+     */
+    public ByteBuffer toByteBuffer() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeUTF(name);
+        if (resumable) {
+            dos.writeLong(rangeCount > 1 ? RANGED : RESUMABLE);
+            dos.writeLong(size);
+            dos.writeLong(fingerprint);
+            if (rangeCount > 1) {
+                dos.writeInt(rangeIndex);
+                dos.writeInt(rangeCount);
+            }
+        } else {
+            dos.writeLong(size);
+        }
+        dos.flush();
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public int getRangeIndex() {
+        return rangeIndex;
+    }
+
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    /**
+     * @return first position of the range sent on this connection
+     */
+    public long getRangeStart() {
+        return getRangeStart(size, rangeIndex, rangeCount);
+    }
+
+    /**
+     * @return position after the last byte of the range sent on this connection
+     */
+    public long getRangeEnd() {
+        return getRangeStart() + getRangeLength(size, rangeIndex, rangeCount);
+    }
+
+    @Override
+    public String toString() {
+        return "FileHeader{" +
+                "name='" + name + '\'' +
+                ", size=" + size +
+                ", resumable=" + resumable +
+                ", range=" + rangeIndex + "/" + rangeCount +
+                '}';
+    }
+}
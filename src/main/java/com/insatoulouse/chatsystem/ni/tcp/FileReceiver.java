@@ -0,0 +1,280 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni.tcp;
+
+import com.insatoulouse.chatsystem.ni.ChatNI;
+import com.insatoulouse.chatsystem.utils.FileTools;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.zip.CRC32;
+
+/**
+ * FileReceiver class
+ * Receive one file from an accepted connection. Run on a TcpListener worker thread.
+ * <p/>
+ * Each worker owns a large direct buffer used both for the header and the file data :
+ * data read with the header are written to the file without another copy.
+ * <p/>
+ * Resumable transfers are written in a partial file which is kept when the connection is lost,
+ * and renamed when every chunk of every range has been received and checked.
+ * <p/>
+ * The connection is non-blocking and waits on a selector, so a peer which stops sending
+ * is dropped after the read timeout instead of holding the worker forever.
+ *
+ * @see com.insatoulouse.chatsystem.ni.tcp.PartialFile
+ * @see com.insatoulouse.chatsystem.ni.tcp.TcpListener
+ */
+public class FileReceiver implements Runnable {
+
+    private static final Logger l = LogManager.getLogger(FileReceiver.class.getName());
+
+    /**
+     * One direct buffer per worker thread
+     */
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>();
+
+    private final ChatNI chatNI;
+    private final SocketChannel socket;
+    private final int bufferSize;
+    private final int chunkSize;
+    private final int readTimeout;
+    private final int maxRanges;
+    private Selector selector;
+    private SelectionKey key;
+
+    public FileReceiver(ChatNI chatNI, SocketChannel socket, int bufferSize, int chunkSize, int readTimeout, int maxRanges) {
+        this.chatNI = chatNI;
+        this.socket = socket;
+        this.bufferSize = bufferSize;
+        this.chunkSize = Math.min(chunkSize, bufferSize - FileHeader.CHUNK_HEADER_SIZE);
+        this.readTimeout = readTimeout;
+        this.maxRanges = maxRanges;
+    }
+
+    @Override
+    public void run() {
+        InetAddress addr = socket.socket().getInetAddress();
+        l.trace("receive new file from " + addr);
+        try {
+            socket.socket().setKeepAlive(true);
+            socket.configureBlocking(false);
+            selector = Selector.open();
+            key = socket.register(selector, SelectionKey.OP_READ);
+            File f = receive(getBuffer());
+            if (f != null) {
+                this.chatNI.processFile(f, addr);
+            }
+        } catch (IOException e) {
+            l.warn("Fail to receive file from " + addr, e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Read header and file data
+     *
+     * @param buffer worker buffer
+     * @return received file, or null if other connections still send parts of it
+     * @throws IOException
+     */
+    private File receive(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        FileHeader header = null;
+        while (header == null) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("File header bigger than " + buffer.capacity() + " bytes");
+            }
+            if (read(buffer) < 0) {
+                throw new EOFException("Connection closed before file header");
+            }
+            buffer.flip();
+            header = FileHeader.read(buffer, maxRanges);
+            if (header == null) {
+                buffer.compact();
+            }
+        }
+
+        String filename = FileTools.getTempFilename(header.getName());
+        l.debug("filename = " + filename);
+        l.debug("size = " + header.getSize());
+        if (header.isResumable()) {
+            return receiveChunks(header, filename, buffer);
+        }
+
+        FileChannel output = FileTools.getTempFileChannel(filename);
+        try {
+            long remaining = header.getSize();
+            while (remaining > 0) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    if (read(buffer) < 0) {
+                        throw new EOFException("Connection closed, " + remaining + " bytes missing for " + filename);
+                    }
+                    buffer.flip();
+                }
+                if (buffer.remaining() > remaining) {
+                    buffer.limit(buffer.position() + (int) remaining);
+                }
+                remaining -= output.write(buffer);
+            }
+        } finally {
+            output.close();
+        }
+        return new File(filename);
+    }
+
+    /**
+     * Receive chunks of a resumable transfer (or of one range of it)
+     *
+     * @param header   transfer header
+     * @param filename final file name
+     * @param buffer   worker buffer (read mode)
+     * @return received file, or null if other ranges are still missing
+     * @throws IOException
+     */
+    private File receiveChunks(FileHeader header, String filename, ByteBuffer buffer) throws IOException {
+        File f = new File(filename);
+        PartialFile part = PartialFile.open(header, f);
+        try {
+            long position = part.getPosition(header);
+            long end = header.getRangeEnd();
+            if (position > header.getRangeStart()) {
+                l.debug("Resume " + header + " at " + position);
+            }
+            ByteBuffer reply = ByteBuffer.allocate(12);
+            reply.putLong(position).putInt(chunkSize).flip();
+            write(reply);
+
+            CRC32 crc = new CRC32();
+            while (position < end) {
+                fill(buffer, FileHeader.CHUNK_HEADER_SIZE);
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > chunkSize || length > end - position) {
+                    throw new IOException("Invalid chunk length " + length + " for " + filename);
+                }
+                fill(buffer, length);
+                ByteBuffer data = buffer.slice();
+                data.limit(length);
+                crc.reset();
+                crc.update(data.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Bad checksum for " + filename + " at " + position);
+                }
+                position = part.write(header, data, position);
+                buffer.position(buffer.position() + length);
+            }
+
+            boolean renamed = part.complete();
+            ByteBuffer done = ByteBuffer.allocate(8);
+            done.putLong(end - header.getRangeStart()).flip();
+            write(done);
+            return renamed ? f : null;
+        } finally {
+            part.release();
+        }
+    }
+
+    /**
+     * Read from socket until buffer has at least n bytes to read
+     *
+     * @param buffer worker buffer (read mode)
+     * @param n      bytes needed
+     * @throws IOException when connection is closed before
+     */
+    private void fill(ByteBuffer buffer, int n) throws IOException {
+        if (buffer.remaining() >= n) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < n) {
+            if (read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Read what the peer sent, waiting at most the read timeout for it
+     *
+     * @param buffer buffer with space left (write mode)
+     * @return bytes read, -1 at end of stream
+     * @throws IOException on timeout or connection error
+     */
+    private int read(ByteBuffer buffer) throws IOException {
+        int n;
+        while ((n = socket.read(buffer)) == 0) {
+            await(SelectionKey.OP_READ);
+        }
+        return n;
+    }
+
+    /**
+     * Write a whole reply, waiting at most the read timeout for socket buffer space
+     *
+     * @param buffer reply (read mode)
+     * @throws IOException on timeout or connection error
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (socket.write(buffer) == 0) {
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void await(int ops) throws IOException {
+        key.interestOps(ops);
+        if (selector.select(readTimeout) == 0) {
+            throw new SocketTimeoutException("Nothing from peer for " + readTimeout + " ms");
+        }
+        selector.selectedKeys().clear();
+    }
+
+    private ByteBuffer getBuffer() {
+        ByteBuffer buffer = BUFFERS.get();
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            BUFFERS.set(buffer);
+        }
+        return buffer;
+    }
+}
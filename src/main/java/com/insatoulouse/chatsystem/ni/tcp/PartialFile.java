@@ -0,0 +1,272 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni.tcp;
+
+import com.insatoulouse.chatsystem.utils.FileTools;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PartialFile class
+ * File being received by a resumable transfer, shared by every range (connection) of the transfer.
+ * <p/>
+ * Data are written at their position in a ".part" file. Bytes received for each range are saved
+ * in a ".progress" file (range count, then one long per range), so a new connection can resume
+ * every range where it stopped. When every range is complete, the part file is renamed.
+ * <p/>
+ * Progress is saved only after the data it covers has been forced to disk, every SAVE_INTERVAL
+ * bytes of a range, at the end of a range and when a connection ends.
+ *
+ * @see com.insatoulouse.chatsystem.ni.tcp.FileHeader
+ */
+public class PartialFile {
+
+    private static final Logger l = LogManager.getLogger(PartialFile.class.getName());
+
+    /**
+     * Bytes of a range received between two saves of its progress
+     */
+    private static final long SAVE_INTERVAL = 8 << 20;
+
+    /**
+     * Partial files opened by current connections, by part file path
+     */
+    private static final Map<String, PartialFile> opened = new HashMap<String, PartialFile>();
+
+    private final File part;
+    private final File progressFile;
+    private final File target;
+    private final long size;
+    private final int rangeCount;
+    private final long[] progress;
+    private final long[] saved;
+    private final FileChannel data;
+    private final FileChannel progressChannel;
+    private final ByteBuffer progressBuffer = ByteBuffer.allocate(8);
+    private int users = 0;
+    private boolean renamed = false;
+
+    private PartialFile(File target, File part, long size, int rangeCount) throws IOException {
+        this.target = target;
+        this.part = part;
+        this.progressFile = new File(part.getPath() + ".progress");
+        this.size = size;
+        this.rangeCount = rangeCount;
+        this.progress = new long[rangeCount];
+        this.saved = new long[rangeCount];
+        this.data = FileTools.openFileChannel(part);
+        this.progressChannel = FileTools.openFileChannel(progressFile);
+        if (!loadProgress()) {
+            l.debug("New partial file " + part);
+            data.truncate(0);
+            progressChannel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(4 + 8 * rangeCount);
+            header.putInt(rangeCount).rewind();
+            while (header.hasRemaining()) {
+                progressChannel.write(header, header.position());
+            }
+        }
+    }
+
+    /**
+     * Open (or share) the partial file of a transfer
+     *
+     * @param header transfer header
+     * @param target final file
+     * @return partial file, must be released
+     * @throws IOException
+     */
+    public static PartialFile open(FileHeader header, File target) throws IOException {
+        File part = FileTools.getPartFile(target.getPath(), header.getFingerprint());
+        synchronized (opened) {
+            PartialFile f = opened.get(part.getPath());
+            if (f == null) {
+                f = new PartialFile(target, part, header.getSize(), header.getRangeCount());
+                opened.put(part.getPath(), f);
+            } else if (f.rangeCount != header.getRangeCount() || f.size != header.getSize()) {
+                throw new IOException("Transfer of " + part + " already running with another layout");
+            }
+            f.users++;
+            return f;
+        }
+    }
+
+    /**
+     * Get first position not received yet in a range
+     *
+     * @param header range header
+     * @return absolute position in file
+     */
+    public synchronized long getPosition(FileHeader header) {
+        return header.getRangeStart() + progress[header.getRangeIndex()];
+    }
+
+    /**
+     * Write checked data of a range at position, then save progress if needed
+     *
+     * @param header   range header
+     * @param buffer   data (read mode)
+     * @param position absolute position in file
+     * @return new position
+     * @throws IOException
+     */
+    public long write(FileHeader header, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += data.write(buffer, position);
+        }
+        int index = header.getRangeIndex();
+        long done = position - header.getRangeStart();
+        boolean save;
+        synchronized (this) {
+            progress[index] = done;
+            save = done - saved[index] >= SAVE_INTERVAL || done == FileHeader.getRangeLength(size, index, rangeCount);
+        }
+        if (save) {
+            saveProgress();
+        }
+        return position;
+    }
+
+    /**
+     * Say if every range has been received
+     *
+     * @return true if file is complete
+     */
+    public synchronized boolean isComplete() {
+        for (int i = 0; i < rangeCount; i++) {
+            if (progress[i] < FileHeader.getRangeLength(size, i, rangeCount)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rename part file to target file. Only the first call for a complete file does it.
+     *
+     * @return true if file has been renamed by this call
+     * @throws IOException
+     */
+    public boolean complete() throws IOException {
+        synchronized (opened) {
+            if (renamed || !isComplete()) {
+                return false;
+            }
+            renamed = true;
+            closeChannels();
+            opened.remove(part.getPath());
+            if (target.exists() && !target.delete() || !part.renameTo(target)) {
+                throw new IOException("Impossible to rename " + part + " to " + target);
+            }
+            if (!progressFile.delete()) {
+                l.warn("Impossible to delete " + progressFile);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Release the partial file when a connection ends, closing it after the last one.
+     * Progress is saved and files are kept on disk to be resumed later.
+     */
+    public void release() {
+        synchronized (opened) {
+            users--;
+            if (renamed) {
+                return;
+            }
+            try {
+                saveProgress();
+            } catch (IOException e) {
+                l.warn("Fail to save progress of " + part, e);
+            }
+            if (users == 0) {
+                opened.remove(part.getPath());
+                closeChannels();
+            }
+        }
+    }
+
+    /**
+     * Force received data to disk, then save the progress covering it
+     *
+     * @throws IOException
+     */
+    private synchronized void saveProgress() throws IOException {
+        data.force(false);
+        for (int i = 0; i < rangeCount; i++) {
+            if (progress[i] == saved[i]) {
+                continue;
+            }
+            progressBuffer.clear();
+            progressBuffer.putLong(progress[i]).flip();
+            while (progressBuffer.hasRemaining()) {
+                progressChannel.write(progressBuffer, 4 + 8 * i + progressBuffer.position());
+            }
+            saved[i] = progress[i];
+        }
+    }
+
+    /**
+     * Load progress of a previous transfer
+     *
+     * @return false if there is no usable progress
+     * @throws IOException
+     */
+    private boolean loadProgress() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 * rangeCount);
+        if (progressChannel.size() != buffer.capacity()) {
+            return false;
+        }
+        while (buffer.hasRemaining()) {
+            if (progressChannel.read(buffer, buffer.position()) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        if (buffer.getInt() != rangeCount) {
+            return false;
+        }
+        for (int i = 0; i < rangeCount; i++) {
+            long value = buffer.getLong();
+            if (value < 0 || value > FileHeader.getRangeLength(size, i, rangeCount)) {
+                return false;
+            }
+            progress[i] = value;
+            saved[i] = value;
+        }
+        return true;
+    }
+
+    private void closeChannels() {
+        try {
+            data.close();
+            progressChannel.close();
+        } catch (IOException e) {
+            l.warn("Fail to close " + part, e);
+        }
+    }
+}
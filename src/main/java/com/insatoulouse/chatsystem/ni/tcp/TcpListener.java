@@ -20,36 +20,61 @@ package com.insatoulouse.chatsystem.ni.tcp;
 
 import com.insatoulouse.chatsystem.exception.TechnicalException;
 import com.insatoulouse.chatsystem.ni.ChatNI;
-import com.insatoulouse.chatsystem.utils.FileTools;
+import com.insatoulouse.chatsystem.utils.Config;
 import com.insatoulouse.chatsystem.utils.NetworkTools;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.DataInputStream;
-import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TcpListener class
+ * Accept TCP connections and give each one to a FileReceiver on a worker pool,
+ * so several files can be received at the same time.
+ *
+ * @see com.insatoulouse.chatsystem.ni.tcp.FileReceiver
  */
 public class TcpListener extends Thread {
 
     private static final Logger l = LogManager.getLogger(TcpListener.class.getName());
 
     private final ChatNI chatNI;
+    private final ExecutorService receivers;
+    private final int bufferSize;
+    private final int chunkSize;
+    private final int readTimeout;
+    private final int maxRanges;
     private TcpSocket socket;
     private Boolean isRunning = true;
 
     public TcpListener(ChatNI ni) throws TechnicalException {
         l.trace("Create TCPListener");
         this.chatNI = ni;
+        Config config = Config.getInstance();
+        this.bufferSize = config.getIntProperties(Config.CONFIG_TCP_BUFFER_SIZE);
+        this.chunkSize = config.getIntProperties(Config.CONFIG_TCP_CHUNK_SIZE);
+        this.readTimeout = config.getIntProperties(Config.CONFIG_TCP_READ_TIMEOUT);
+        this.maxRanges = Math.max(1, config.getIntProperties(Config.CONFIG_TCP_PARALLEL_STREAMS));
         try {
-            this.socket = new TcpSocket(NetworkTools.getPort());
+            this.socket = new TcpSocket(NetworkTools.getPort(), config.getIntProperties(Config.CONFIG_TCP_BACKLOG));
         } catch (IOException e) {
             throw new TechnicalException("Impossible de démarrer le TCPListener : " + e.getMessage());
         }
+        this.receivers = Executors.newFixedThreadPool(config.getIntProperties(Config.CONFIG_TCP_RECEIVERS), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FileReceiver-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
     /**
@@ -59,30 +84,15 @@ public class TcpListener extends Thread {
     public void run() {
         l.trace("Start TCPListener");
         while (isRunning) {
-            Socket s;
+            SocketChannel s;
             try {
                 if ((s = this.socket.accept()) != null) {
-                    l.trace("receive new file");
-                    DataInputStream clientData = NetworkTools.getDataInputStreamFromSocket(s);
-                    String filename = clientData.readUTF();
-                    long size = clientData.readLong();
-
-                    filename = FileTools.getTempFilename(filename);
-                    OutputStream output = FileTools.getTempOutputStream(filename);
-
-                    l.debug("filename = " + filename);
-                    l.debug("size = " + size);
-                    int bytesRead;
-                    byte[] buffer = new byte[1024];
-                    while (size > 0 && (bytesRead = clientData.read(buffer, 0, (int) Math.min(buffer.length, size))) != -1) {
-                        output.write(buffer, 0, bytesRead);
-                        size -= bytesRead;
-                    }
-                    s.close();
-                    this.chatNI.processFile(new File(filename), s.getInetAddress());
+                    receivers.execute(new FileReceiver(chatNI, s, bufferSize, chunkSize, readTimeout, maxRanges));
                 }
             } catch (IOException e) {
-                l.warn(e);
+                if (isRunning) {
+                    l.warn(e);
+                }
             }
         }
     }
@@ -97,5 +107,6 @@ public class TcpListener extends Thread {
             this.socket.close();
         } catch (IOException ignored) {
         }
+        receivers.shutdownNow();
     }
 }
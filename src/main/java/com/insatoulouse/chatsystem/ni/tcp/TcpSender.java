@@ -19,49 +19,302 @@
 package com.insatoulouse.chatsystem.ni.tcp;
 
 import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.utils.Config;
 import com.insatoulouse.chatsystem.utils.NetworkTools;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 /**
  * TcpSender class
+ * Stream a file on a TCP connection :
+ * file name (writeUTF), file size (writeLong) and then file data.
+ *
+ * @see com.insatoulouse.chatsystem.ni.tcp.FileHeader
  */
 public class TcpSender {
 
     private static final Logger l = LogManager.getLogger(TcpSender.class.getName());
 
+    /**
+     * Wait before a new attempt of a resumable transfer (ms), multiplied by attempt number
+     */
+    private static final long RESUME_DELAY = 1000;
+
+    /**
+     * Bytes read at the beginning and at the end of a file to compute its fingerprint
+     */
+    private static final int FINGERPRINT_SAMPLE = 65536;
+
+    /**
+     * Daemon threads sending the ranges of parallel transfers, shared by every TcpSender.
+     * Ranges of concurrent transfers wait in the queue beyond tcp.parallelStreams.
+     */
+    private static ThreadPoolExecutor ranges;
+
     /**
      * Send file f to addr
-     * @param f file to send
+     * File data are given to the kernel with FileChannel.transferTo (sendfile when available),
+     * so the file is never loaded in memory.
+     *
+     * @param f    file to send
      * @param addr remote address
      * @throws TechnicalException
      * @throws IOException
      */
     public void send(File f, InetAddress addr) throws TechnicalException, IOException {
         l.trace("send");
-        Socket s = new Socket(addr, NetworkTools.getPort());
-        byte[] fileBytes = new byte[(int) f.length()];
-        FileInputStream fileInputStream = new FileInputStream(f);
-        // getting informations about the file to send
-        BufferedInputStream bis = new BufferedInputStream(fileInputStream);
-        DataInputStream dis = new DataInputStream(bis);
-        dis.readFully(fileBytes, 0, fileBytes.length);
-
-        // ready to send through the socket
-        OutputStream socketOutput = s.getOutputStream();
-
-        // sending file name and file size
-        DataOutputStream dos = new DataOutputStream(socketOutput);
-        dos.writeUTF(f.getName());
-        dos.writeLong(fileBytes.length);
-        dos.flush();
-
-        // sending file data
-        socketOutput.write(fileBytes, 0, fileBytes.length);
-        socketOutput.flush();
+        SocketChannel socket = SocketChannel.open(new InetSocketAddress(addr, NetworkTools.getPort()));
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(f);
+            FileChannel file = input.getChannel();
+            long size = file.size();
+
+            // sending file name and file size
+            ByteBuffer header = new FileHeader(f.getName(), size).toByteBuffer();
+            while (header.hasRemaining()) {
+                socket.write(header);
+            }
+
+            // sending file data
+            long position = 0;
+            while (position < size) {
+                long sent = file.transferTo(position, size - position, socket);
+                if (sent == 0 && position >= file.size()) {
+                    throw new IOException("File truncated during transfer : " + f);
+                }
+                position += sent;
+            }
+            l.debug("File " + f.getName() + " sent (" + size + " bytes)");
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+            socket.close();
+        }
+    }
+
+    /**
+     * Send file f to addr with the resumable transfer.
+     * When the connection is lost, a new connection is opened and the receiver
+     * tells from which offset the transfer must continue.
+     * <p/>
+     * When parallel is true and the file is bigger than tcp.parallelThreshold,
+     * the file is split in tcp.parallelStreams ranges sent on as many connections.
+     *
+     * @param f        file to send
+     * @param addr     remote address
+     * @param parallel true if receiver accepts several connections for one file
+     * @throws TechnicalException
+     * @throws IOException        when every attempt of a range failed
+     */
+    public void sendResumable(final File f, final InetAddress addr, boolean parallel) throws TechnicalException, IOException {
+        l.trace("sendResumable");
+        Config config = Config.getInstance();
+        final long fingerprint = getFingerprint(f);
+        final long size = f.length();
+        final int streams = (parallel && size >= config.getIntProperties(Config.CONFIG_TCP_PARALLEL_THRESHOLD))
+                ? Math.max(1, config.getIntProperties(Config.CONFIG_TCP_PARALLEL_STREAMS)) : 1;
+        if (streams == 1) {
+            sendRange(f, addr, new FileHeader(f.getName(), size, fingerprint));
+            return;
+        }
+
+        l.debug("Send " + f.getName() + " on " + streams + " connections");
+        ExecutorService executor = getRangeExecutor(streams);
+        List<Future<Void>> ranges = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < streams; i++) {
+                final FileHeader header = new FileHeader(f.getName(), size, fingerprint, i, streams);
+                ranges.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        sendRange(f, addr, header);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> range : ranges) {
+                range.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer of " + f.getName() + " cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof TechnicalException) {
+                throw (TechnicalException) e.getCause();
+            }
+            throw new TechnicalException(e.getCause());
+        } finally {
+            // stop the other ranges when one failed or the transfer was cancelled
+            for (Future<Void> range : ranges) {
+                range.cancel(true);
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getRangeExecutor(int threads) {
+        if (ranges == null) {
+            ranges = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "TcpSender-range-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            ranges.allowCoreThreadTimeOut(true);
+        }
+        return ranges;
+    }
+
+    /**
+     * Send one range of a resumable transfer, with a new connection after each failure
+     *
+     * @param f      file to send
+     * @param addr   remote address
+     * @param header header of the range
+     * @throws TechnicalException
+     * @throws IOException        when every attempt failed
+     */
+    private void sendRange(File f, InetAddress addr, FileHeader header) throws TechnicalException, IOException {
+        int attempts = Config.getInstance().getIntProperties(Config.CONFIG_TCP_RESUME_ATTEMPTS);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                sendChunks(f, addr, header);
+                return;
+            } catch (IOException e) {
+                if (attempt >= attempts) {
+                    throw e;
+                }
+                l.warn("Transfer of " + header + " interrupted, resume (" + attempt + "/" + attempts + ")", e);
+                try {
+                    Thread.sleep(RESUME_DELAY * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Transfer of " + f.getName() + " cancelled");
+                }
+            }
+        }
+    }
+
+    /**
+     * One attempt of a resumable transfer
+     *
+     * @param f      file to send
+     * @param addr   remote address
+     * @param header header of the range to send
+     * @throws TechnicalException
+     * @throws IOException
+     */
+    private void sendChunks(File f, InetAddress addr, FileHeader header) throws TechnicalException, IOException {
+        SocketChannel socket = SocketChannel.open(new InetSocketAddress(addr, NetworkTools.getPort()));
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(f);
+            FileChannel file = input.getChannel();
+            long start = header.getRangeStart();
+            long end = header.getRangeEnd();
+            NetworkTools.writeFully(socket, header.toByteBuffer());
+
+            // receiver gives position and chunk size
+            ByteBuffer reply = ByteBuffer.allocate(12);
+            NetworkTools.readFully(socket, reply);
+            long position = reply.getLong(0);
+            int chunkSize = reply.getInt(8);
+            if (position < start || position > end || chunkSize <= 0) {
+                throw new IOException("Invalid resume reply : position=" + position + ", chunk=" + chunkSize);
+            }
+            if (position > start) {
+                l.debug("Resume " + header + " at " + position);
+            }
+
+            ByteBuffer chunkHeader = ByteBuffer.allocate(FileHeader.CHUNK_HEADER_SIZE);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize);
+            ByteBuffer[] frame = new ByteBuffer[]{chunkHeader, chunk};
+            CRC32 crc = new CRC32();
+            while (position < end) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunkSize, end - position));
+                while (chunk.hasRemaining()) {
+                    if (file.read(chunk, position + chunk.position()) < 0) {
+                        throw new IOException("File truncated during transfer : " + f);
+                    }
+                }
+                chunk.flip();
+                crc.reset();
+                crc.update(chunk.duplicate());
+
+                chunkHeader.clear();
+                chunkHeader.putInt(chunk.remaining()).putInt((int) crc.getValue()).flip();
+                position += chunk.remaining();
+                while (chunk.hasRemaining()) {
+                    socket.write(frame);
+                }
+            }
+
+            // receiver gives number of bytes of the range it has
+            ByteBuffer done = ByteBuffer.allocate(8);
+            NetworkTools.readFully(socket, done);
+            if (done.getLong(0) != end - start) {
+                throw new IOException("Remote file incomplete : " + done.getLong(0) + "/" + (end - start));
+            }
+            l.debug("Range " + header + " sent");
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+            socket.close();
+        }
+    }
+
+    /**
+     * Get fingerprint of a file : CRC32 of size, modification date and
+     * the first and last bytes of the file. Used by the receiver to find a partial file.
+     *
+     * @param f file
+     * @return fingerprint
+     * @throws IOException
+     */
+    private long getFingerprint(File f) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer meta = ByteBuffer.allocate(16);
+        meta.putLong(f.length()).putLong(f.lastModified()).flip();
+        crc.update(meta);
+        FileInputStream input = new FileInputStream(f);
+        try {
+            FileChannel file = input.getChannel();
+            ByteBuffer sample = ByteBuffer.allocate(FINGERPRINT_SAMPLE);
+            file.read(sample, 0);
+            sample.flip();
+            crc.update(sample);
+            sample.clear();
+            file.read(sample, Math.max(0, file.size() - FINGERPRINT_SAMPLE));
+            sample.flip();
+            crc.update(sample);
+        } finally {
+            input.close();
+        }
+        return crc.getValue();
     }
 }
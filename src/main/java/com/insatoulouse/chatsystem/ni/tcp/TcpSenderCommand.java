@@ -38,11 +38,21 @@ public class TcpSenderCommand implements NetworkCommand {
     private final TcpSender tcpSender;
     private final File f;
     private final InetAddress addr;
+    private final boolean resumable;
+    private final boolean parallel;
 
-    public TcpSenderCommand(File f, InetAddress addr) {
+    /**
+     * @param f         file to send
+     * @param addr      remote address
+     * @param resumable true to use the chunked resumable transfer
+     * @param parallel  true if a big file can be sent on several connections (resumable only)
+     */
+    public TcpSenderCommand(File f, InetAddress addr, boolean resumable, boolean parallel) {
         l.trace("Create TcpSenderCommand");
         this.f = f;
         this.addr = addr;
+        this.resumable = resumable;
+        this.parallel = parallel;
         this.tcpSender = new TcpSender();
     }
 
@@ -53,11 +63,20 @@ public class TcpSenderCommand implements NetworkCommand {
     public void execute() {
         l.trace("Execute TcpSenderCommand");
         try {
-            tcpSender.send(f, addr);
+            if (resumable) {
+                tcpSender.sendResumable(f, addr, parallel);
+            } else {
+                tcpSender.send(f, addr);
+            }
         } catch (TechnicalException e) {
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    @Override
+    public Lane getLane() {
+        return Lane.BULK;
+    }
 }
@@ -19,16 +19,36 @@
 package com.insatoulouse.chatsystem.ni.tcp;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * TcpSocket class
+ * Listen socket for file transfers
  */
-public class TcpSocket extends ServerSocket {
+public class TcpSocket {
 
-    public TcpSocket(int port) throws IOException {
-        super(port, 5, InetAddress.getByName("0.0.0.0"));
+    private final ServerSocketChannel channel;
+
+    public TcpSocket(int port, int backlog) throws IOException {
+        channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.socket().bind(new InetSocketAddress("0.0.0.0", port), backlog);
+    }
+
+    /**
+     * Wait for a new connection
+     *
+     * @return connection accepted
+     * @throws IOException
+     */
+    public SocketChannel accept() throws IOException {
+        return channel.accept();
+    }
+
+    public void close() throws IOException {
+        channel.close();
     }
 
 }
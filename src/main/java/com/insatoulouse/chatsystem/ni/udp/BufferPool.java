@@ -0,0 +1,132 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni.udp;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool class
+ * Fixed set of direct buffers allocated once, given back to the pool when their last user releases them.
+ * Nothing is allocated by acquire and release.
+ */
+public class BufferPool {
+
+    private static final Logger l = LogManager.getLogger(BufferPool.class.getName());
+
+    private final BlockingQueue<PooledBuffer> free;
+    private final int capacity;
+    private final AtomicLong exhausted = new AtomicLong();
+
+    /**
+     * Create a pool
+     *
+     * @param count      number of buffers
+     * @param bufferSize size of each buffer
+     */
+    public BufferPool(int count, int bufferSize) {
+        this.capacity = count;
+        this.free = new ArrayBlockingQueue<PooledBuffer>(count);
+        for (int i = 0; i < count; i++) {
+            free.add(new PooledBuffer(this, ByteBuffer.allocateDirect(bufferSize)));
+        }
+    }
+
+    /**
+     * Get a free buffer, cleared, with one reference
+     *
+     * @return buffer, or null when every buffer is in use
+     */
+    public PooledBuffer acquire() {
+        PooledBuffer b = free.poll();
+        if (b == null) {
+            long n = exhausted.incrementAndGet();
+            if ((n & (n - 1)) == 0) {
+                l.warn("Buffer pool exhausted " + n + " times");
+            }
+            return null;
+        }
+        b.refCnt.set(1);
+        b.buffer.clear();
+        return b;
+    }
+
+    /**
+     * @return buffers available
+     */
+    public int getAvailable() {
+        return free.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return times a buffer was asked while none was free
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * Buffer of a pool, with a reference count
+     */
+    public static class PooledBuffer {
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        private final AtomicInteger refCnt = new AtomicInteger();
+
+        private PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+            this.pool = pool;
+            this.buffer = buffer;
+        }
+
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * Add a reference, the buffer must not be released meanwhile
+         */
+        public void retain() {
+            if (refCnt.getAndIncrement() <= 0) {
+                throw new IllegalStateException("Buffer already released");
+            }
+        }
+
+        /**
+         * Remove a reference, the buffer goes back to the pool with the last one
+         */
+        public void release() {
+            int n = refCnt.decrementAndGet();
+            if (n == 0) {
+                pool.free.add(this);
+            } else if (n < 0) {
+                throw new IllegalStateException("Buffer released too many times");
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni.udp;
+
+import com.insatoulouse.chatsystem.exception.PacketException;
+import com.insatoulouse.chatsystem.model.network.Packet;
+import com.insatoulouse.chatsystem.ni.ChatNI;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ReceivePipeline class
+ * Received datagrams go through three stages :
+ * <ol>
+ * <li>the receive thread (UdpListener) publishes a pooled buffer in the next slot of a ring,</li>
+ * <li>decoder threads parse slots in any order, and release buffers,</li>
+ * <li>one dispatcher thread gives packets to ChatNI in reception order, then frees the slot.</li>
+ * </ol>
+ * Slots are allocated once. When every slot is in use, datagrams are dropped and counted.
+ *
+ * @see com.insatoulouse.chatsystem.ni.udp.UdpListener
+ */
+public class ReceivePipeline {
+
+    private static final Logger l = LogManager.getLogger(ReceivePipeline.class.getName());
+
+    /**
+     * Dispatcher checks if pipeline is closed at this rate while waiting
+     */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ChatNI chatNI;
+    private final Slot[] slots;
+    private final int mask;
+    private final BlockingQueue<Slot> decodeQueue;
+    private final List<Thread> decoders = new ArrayList<Thread>();
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    /**
+     * Next sequence to publish, written by the receive thread only
+     */
+    private long published = 0;
+
+    /**
+     * Next sequence to dispatch, written by the dispatcher only
+     */
+    private volatile long dispatched = 0;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private volatile long maxDepth = 0;
+
+    /**
+     * Create a pipeline
+     *
+     * @param chatNI     decoder and receiver of packets
+     * @param size       number of slots, rounded up to a power of 2
+     * @param decoders   number of decoder threads
+     */
+    public ReceivePipeline(ChatNI chatNI, int size, int decoders) {
+        this.chatNI = chatNI;
+        int n = Integer.highestOneBit(Math.max(size, 2));
+        if (n < size) {
+            n <<= 1;
+        }
+        this.slots = new Slot[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            slots[i] = new Slot();
+        }
+        this.decodeQueue = new ArrayBlockingQueue<Slot>(n);
+        for (int i = 0; i < decoders; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    decode();
+                }
+            }, "PacketDecoder-" + i);
+            t.setDaemon(true);
+            this.decoders.add(t);
+        }
+        this.dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "PacketDispatcher");
+        this.dispatcher.setDaemon(true);
+    }
+
+    public void start() {
+        for (Thread t : decoders) {
+            t.start();
+        }
+        dispatcher.start();
+    }
+
+    /**
+     * Say if every slot is in use
+     * Called by the receive thread only
+     *
+     * @return true when next datagram can't be published
+     */
+    public boolean isFull() {
+        return published - dispatched >= slots.length;
+    }
+
+    /**
+     * Give a received datagram to decoders, the pipeline takes the reference of the buffer
+     * Called by the receive thread only, when pipeline isn't full
+     *
+     * @param buffer datagram (read mode)
+     * @param addr   sender
+     */
+    public void publish(BufferPool.PooledBuffer buffer, InetAddress addr) {
+        Slot slot = slots[(int) (published & mask)];
+        slot.buffer = buffer;
+        slot.addr = addr;
+        published++;
+        long depth = published - dispatched;
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        decodeQueue.add(slot);
+    }
+
+    /**
+     * Count a datagram received while the pipeline was full
+     */
+    public void drop() {
+        long n = dropped.incrementAndGet();
+        if ((n & (n - 1)) == 0) {
+            l.warn("Receive pipeline full, " + n + " datagrams dropped");
+        }
+    }
+
+    /**
+     * Stop decoders and dispatcher, slots not dispatched yet are lost
+     */
+    public void close() {
+        running = false;
+        for (Thread t : decoders) {
+            t.interrupt();
+        }
+        dispatcher.interrupt();
+        l.debug("Receive pipeline closed : received=" + published + " dropped=" + getDropped()
+                + " invalid=" + getInvalid() + " maxDepth=" + getMaxDepth());
+    }
+
+    /**
+     * @return datagrams received and not dispatched yet
+     */
+    public long getDepth() {
+        return Math.max(0, published - dispatched);
+    }
+
+    /**
+     * @return datagrams waiting for a decoder
+     */
+    public int getDecodeQueueSize() {
+        return decodeQueue.size();
+    }
+
+    /**
+     * @return highest depth seen
+     */
+    public long getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return datagrams dropped because the pipeline was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return datagrams which aren't valid packets
+     */
+    public long getInvalid() {
+        return invalid.get();
+    }
+
+    private void decode() {
+        while (running) {
+            Slot slot;
+            try {
+                slot = decodeQueue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            ByteBuffer data = slot.buffer.getBuffer();
+            try {
+                slot.binary = ChatNI.isBinary(data);
+                slot.decoded = chatNI.decode(data, slot.addr);
+            } catch (PacketException e) {
+                invalid.incrementAndGet();
+                l.error("Drop invalid packet from " + slot.addr, e);
+                slot.decoded = null;
+            } finally {
+                slot.buffer.release();
+                slot.buffer = null;
+            }
+            slot.ready = true;
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    private void dispatch() {
+        while (running) {
+            Slot slot = slots[(int) (dispatched & mask)];
+            if (!slot.ready) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+                continue;
+            }
+            try {
+                if (slot.decoded != null) {
+                    chatNI.processPacket(slot.decoded, slot.addr, slot.binary);
+                }
+            } catch (RuntimeException e) {
+                l.error("Fail to process packet", e);
+            } finally {
+                slot.decoded = null;
+                slot.addr = null;
+                slot.ready = false;
+                dispatched++;
+            }
+        }
+    }
+
+    /**
+     * Datagram in the pipeline
+     */
+    private static class Slot {
+        private BufferPool.PooledBuffer buffer;
+        private InetAddress addr;
+        private boolean binary;
+        private Packet decoded;
+
+        /**
+         * Set by the decoder once decoded is written
+         */
+        private volatile boolean ready = false;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni.udp;
+
+import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.ni.NetworkCommand;
+import com.insatoulouse.chatsystem.ni.NetworkInvoker;
+import com.insatoulouse.chatsystem.utils.TimerWheel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * UdpBatcher class
+ * Coalesce small datagrams to the same destination in one datagram.
+ * The first datagram of a batch queues a flush command (after a linger timeout on the timer wheel when
+ * one is configured) : datagrams added while the command waits for a worker are sent with it.
+ * A destination has at most one flush command queued or running, which sends again what was added
+ * during its own sends, so datagrams to one destination are sent in order.
+ * <p/>
+ * Batch : MAGIC (1 byte), then for each packet its length (unsigned short) and its data.
+ * A batch of one datagram is sent as is.
+ *
+ * @see com.insatoulouse.chatsystem.ni.udp.UdpSender
+ */
+public class UdpBatcher {
+
+    /**
+     * First byte of a batch, neither JSON, binary packet nor fragment
+     */
+    public static final byte MAGIC = (byte) 0xC7;
+
+    private static final Logger l = LogManager.getLogger(UdpBatcher.class.getName());
+
+    private final UdpSender udpSender;
+    private final NetworkInvoker invoker;
+    private final TimerWheel timer;
+    private final int maxSize;
+    private final long lingerMillis;
+
+    /**
+     * Batch of each destination accepting batches
+     */
+    private final ConcurrentMap<InetAddress, Batch> batches = new ConcurrentHashMap<InetAddress, Batch>();
+
+    /**
+     * Create a batcher
+     *
+     * @param udpSender     sender of datagrams
+     * @param invoker       invoker running flush commands
+     * @param timer         timer of linger timeouts
+     * @param maxSize       maximum size of a batch datagram
+     * @param lingerMillis  time waiting for more datagrams before sending a batch (ms, 0 to queue the flush at once),
+     *                      rounded to the timer tick
+     */
+    public UdpBatcher(UdpSender udpSender, NetworkInvoker invoker, TimerWheel timer, int maxSize, int lingerMillis) {
+        this.udpSender = udpSender;
+        this.invoker = invoker;
+        this.timer = timer;
+        this.maxSize = maxSize;
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * Start batching datagrams to a destination
+     *
+     * @param addr destination, able to read batches
+     */
+    public void enable(InetAddress addr) {
+        batches.putIfAbsent(addr, new Batch(addr));
+    }
+
+    /**
+     * Stop batching datagrams to a destination, pending ones are sent
+     *
+     * @param addr destination
+     */
+    public void disable(InetAddress addr) {
+        Batch b = batches.remove(addr);
+        if (b != null) {
+            b.flush();
+        }
+    }
+
+    /**
+     * Add a datagram to the batch of its destination
+     *
+     * @param dp   datagram
+     * @param lane invoker lane of the datagram
+     * @return false if datagram can't be batched and must be sent alone
+     */
+    public boolean offer(DatagramPacket dp, NetworkCommand.Lane lane) {
+        Batch b = batches.get(dp.getAddress());
+        if (b == null || 1 + 2 + dp.getLength() > maxSize) {
+            return false;
+        }
+        b.add(dp, lane);
+        return true;
+    }
+
+    /**
+     * Datagrams waiting for one destination
+     */
+    private class Batch implements NetworkCommand {
+        private final InetAddress addr;
+        private final ByteBuffer buffer = ByteBuffer.allocate(maxSize);
+        private final Queue<DatagramPacket> ready = new ArrayDeque<DatagramPacket>();
+        private DatagramPacket first;
+        private int count = 0;
+        private Lane lane;
+
+        /**
+         * True from the first datagram until the flush command has nothing left to send
+         */
+        private boolean scheduled = false;
+
+        /**
+         * Pending linger timeout, null once the command is queued
+         */
+        private TimerWheel.Timeout linger;
+
+        private final Runnable lingerExpired = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Batch.this) {
+                    linger = null;
+                }
+                invoker.addCommand(Batch.this);
+            }
+        };
+
+        private Batch(InetAddress addr) {
+            this.addr = addr;
+        }
+
+        private void add(DatagramPacket dp, Lane lane) {
+            boolean queue;
+            synchronized (this) {
+                if (count > 0 && buffer.position() + 2 + dp.getLength() > maxSize) {
+                    ready.add(drain());
+                }
+                if (count == 0) {
+                    buffer.clear();
+                    buffer.put(MAGIC);
+                    first = dp;
+                    this.lane = lane;
+                }
+                buffer.putShort((short) dp.getLength());
+                buffer.put(dp.getData(), dp.getOffset(), dp.getLength());
+                count++;
+                queue = schedule(!ready.isEmpty());
+            }
+            if (queue) {
+                invoker.addCommand(this);
+            }
+        }
+
+        /**
+         * Send pending datagrams without waiting
+         */
+        private void flush() {
+            boolean queue;
+            synchronized (this) {
+                if (count > 0) {
+                    ready.add(drain());
+                }
+                queue = !ready.isEmpty() && schedule(true);
+            }
+            if (queue) {
+                invoker.addCommand(this);
+            }
+        }
+
+        /**
+         * Schedule the flush command, after the linger unless now is true
+         * Must hold the lock
+         *
+         * @param now true to send without waiting
+         * @return true if command must be queued by caller
+         */
+        private boolean schedule(boolean now) {
+            if (!scheduled) {
+                scheduled = true;
+                if (now || lingerMillis <= 0) {
+                    return true;
+                }
+                linger = timer.schedule(lingerExpired, lingerMillis);
+                return false;
+            }
+            if (now && linger != null && linger.cancel()) {
+                linger = null;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Get datagram of pending datagrams, and empty the batch
+         * Must hold the lock
+         */
+        private DatagramPacket drain() {
+            DatagramPacket dp;
+            if (count == 0) {
+                dp = null;
+            } else if (count == 1) {
+                dp = first;
+            } else {
+                byte[] data = new byte[buffer.position()];
+                System.arraycopy(buffer.array(), 0, data, 0, data.length);
+                dp = new DatagramPacket(data, data.length, first.getSocketAddress());
+                l.trace("Batch of " + count + " packets to " + addr);
+            }
+            count = 0;
+            first = null;
+            return dp;
+        }
+
+        @Override
+        public void execute() throws TechnicalException {
+            while (true) {
+                DatagramPacket[] dps;
+                synchronized (this) {
+                    if (count > 0) {
+                        ready.add(drain());
+                    }
+                    if (ready.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                    dps = ready.toArray(new DatagramPacket[ready.size()]);
+                    ready.clear();
+                }
+                try {
+                    for (DatagramPacket dp : dps) {
+                        udpSender.send(dp);
+                    }
+                } catch (TechnicalException e) {
+                    boolean queue;
+                    synchronized (this) {
+                        scheduled = false;
+                        queue = (count > 0 || !ready.isEmpty()) && schedule(true);
+                    }
+                    if (queue) {
+                        invoker.addCommand(this);
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public synchronized Lane getLane() {
+            return lane != null ? lane : Lane.CONTROL;
+        }
+    }
+}
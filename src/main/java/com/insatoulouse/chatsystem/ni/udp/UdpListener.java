@@ -20,33 +20,51 @@ package com.insatoulouse.chatsystem.ni.udp;
 
 import com.insatoulouse.chatsystem.exception.TechnicalException;
 import com.insatoulouse.chatsystem.ni.ChatNI;
+import com.insatoulouse.chatsystem.utils.Config;
 import com.insatoulouse.chatsystem.utils.NetworkTools;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * UdpListener class
  * Start a new Thread with Listen socket
- * Send received data to ChatNI
+ * Receive datagrams in pooled direct buffers given to a ReceivePipeline, which decodes them and gives them to ChatNI
  *
  * @see UdpSocket
+ * @see ReceivePipeline
+ * @see BufferPool
  */
 public class UdpListener extends Thread {
 
     private static final Logger l = LogManager.getLogger(UdpListener.class.getName());
 
-    private final ChatNI chatNI;
+    /**
+     * Largest datagram received
+     */
+    private final int bufferSize;
+    private final BufferPool pool;
+    private final AtomicLong truncated = new AtomicLong();
+    private final AtomicLong noBuffer = new AtomicLong();
+    private final ReceivePipeline pipeline;
     private UdpSocket socket;
     private Boolean isRunning = true;
 
     public UdpListener(ChatNI chatNI) throws TechnicalException {
         l.trace("Create UdpListener");
-        this.chatNI = chatNI;
+        Config config = Config.getInstance();
+        this.bufferSize = config.getIntProperties(Config.CONFIG_UDP_BUFFER_SIZE);
+        // one more byte tells a datagram of bufferSize bytes from a truncated one
+        this.pool = new BufferPool(config.getIntProperties(Config.CONFIG_UDP_BUFFERS), bufferSize + 1);
+        this.pipeline = new ReceivePipeline(chatNI, config.getIntProperties(Config.CONFIG_UDP_PIPELINE),
+                config.getIntProperties(Config.CONFIG_UDP_DECODERS));
         try {
-            this.socket = new UdpSocket(NetworkTools.getPort());
+            this.socket = new UdpSocket(NetworkTools.getPort(), config.getIntProperties(Config.CONFIG_UDP_RECEIVE_BUFFER));
+            l.debug("Udp receive buffer : " + this.socket.getReceiveBufferSize());
         } catch (IOException e) {
             l.error("Fail to launch UdpListener", e);
             throw new TechnicalException("Impossible de lancer le UDPListener.", e);
@@ -54,30 +72,82 @@ public class UdpListener extends Thread {
     }
 
     /**
-     * Listen for each UDP packet on network and give the packet to the ChatNI.
+     * Listen for each UDP packet on network and give the packet to the pipeline.
+     * Nothing else is done on this thread, so the socket buffer is emptied as fast as possible,
+     * and nothing is allocated.
      */
     public void run() {
         l.trace("Start UdpListener");
-        byte buffer[] = new byte[4096];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        pipeline.start();
+        ByteBuffer overflow = ByteBuffer.allocateDirect(bufferSize + 1);
         while (isRunning) {
+            boolean full = pipeline.isFull();
+            BufferPool.PooledBuffer b = full ? null : pool.acquire();
             try {
-                this.socket.receive(packet);
-                chatNI.processPacket(packet);
+                if (b != null) {
+                    InetSocketAddress from = (InetSocketAddress) this.socket.receive(b.getBuffer());
+                    if (b.getBuffer().hasRemaining()) {
+                        b.getBuffer().flip();
+                        pipeline.publish(b, from.getAddress());
+                        b = null;
+                    } else {
+                        truncated.incrementAndGet();
+                        l.warn("Drop datagram bigger than " + bufferSize + " bytes from " + from);
+                    }
+                } else {
+                    overflow.clear();
+                    this.socket.receive(overflow);
+                    if (full) {
+                        pipeline.drop();
+                    } else {
+                        noBuffer.incrementAndGet();
+                    }
+                }
             } catch (IOException ignored) {
-                l.warn(ignored);
+                if (isRunning)
+                    l.warn(ignored);
+            } finally {
+                if (b != null)
+                    b.release();
             }
         }
     }
 
+    /**
+     * @return datagrams dropped because they didn't fit in a buffer
+     */
+    public long getTruncated() {
+        return truncated.get();
+    }
+
+    /**
+     * @return datagrams dropped because every buffer of the pool was in use
+     */
+    public long getNoBuffer() {
+        return noBuffer.get();
+    }
+
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    public ReceivePipeline getPipeline() {
+        return pipeline;
+    }
+
     /**
      * Close properly the UdpListener
      */
     public synchronized void close() {
         l.trace("Close UdpListener");
         isRunning = false;
-        this.socket.close();
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            l.warn("Fail to close Udp channel", e);
+        }
         this.interrupt();
+        this.pipeline.close();
     }
 
 }
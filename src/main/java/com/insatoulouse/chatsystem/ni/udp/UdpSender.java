@@ -24,33 +24,63 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 /**
  * UdpSender class
+ * Own one DatagramChannel shared by every UdpSenderCommand.
+ * The channel is opened once by ChatNI and closed on exit.
+ *
+ * @see com.insatoulouse.chatsystem.ni.ChatNI
  */
 public class UdpSender {
 
     private static final Logger l = LogManager.getLogger(UdpSender.class.getName());
 
+    /**
+     * Channel used for every outgoing datagram (unicast and broadcast)
+     */
+    private final DatagramChannel channel;
+
+    public UdpSender() throws TechnicalException {
+        l.trace("Create UdpSender");
+        try {
+            this.channel = DatagramChannel.open();
+            this.channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        } catch (IOException e) {
+            l.error("Fail to open Udp channel", e);
+            throw new TechnicalException("Impossible d'ouvrir le canal UDP.", e);
+        }
+    }
+
     /**
      * Send an UdpPacket
+     * DatagramChannel.send is thread safe, so the channel can be used by several commands at once.
+     *
      * @param packet DatagramPacket to send
      * @throws TechnicalException
      */
     public void send(DatagramPacket packet) throws TechnicalException {
         l.debug("Send : " + packet);
         try {
-            DatagramSocket s = new DatagramSocket();
-            s.send(packet);
-        } catch (SocketException e) {
-            l.error("Fail to send Udp packet", e);
-            throw new TechnicalException("Fail to send Udp packet", e);
+            channel.send(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()), packet.getSocketAddress());
         } catch (IOException e) {
             l.error("Fail to send Udp packet", e);
             throw new TechnicalException("Fail to send Udp packet", e);
         }
     }
 
+    /**
+     * Close the shared channel
+     */
+    public void close() {
+        l.trace("Close UdpSender");
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
 }
@@ -37,11 +37,13 @@ public class UdpSenderCommand implements NetworkCommand {
 
     private final UdpSender udpSender;
     private final DatagramPacket p;
+    private final Lane lane;
 
-    public UdpSenderCommand(DatagramPacket p) {
+    public UdpSenderCommand(UdpSender udpSender, DatagramPacket p, Lane lane) {
         l.trace("Create UdpSenderCommand");
         this.p = p;
-        this.udpSender = new UdpSender();
+        this.udpSender = udpSender;
+        this.lane = lane;
     }
 
     /**
@@ -53,4 +55,9 @@ public class UdpSenderCommand implements NetworkCommand {
         l.trace("Execute command");
         udpSender.send(p);
     }
+
+    @Override
+    public Lane getLane() {
+        return lane;
+    }
 }
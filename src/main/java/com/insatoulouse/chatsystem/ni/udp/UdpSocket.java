@@ -19,14 +19,46 @@
 package com.insatoulouse.chatsystem.ni.udp;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 /**
  * UdpSocket class
+ * Listen channel for packets
  */
-public class UdpSocket extends DatagramSocket {
+public class UdpSocket {
 
-    public UdpSocket(int port) throws IOException {
-        super(port);
+    private final DatagramChannel channel;
+
+    public UdpSocket(int port, int receiveBufferSize) throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        channel.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Wait for a datagram
+     *
+     * @param buffer buffer to fill (write mode)
+     * @return address of sender
+     * @throws IOException
+     */
+    public SocketAddress receive(ByteBuffer buffer) throws IOException {
+        return channel.receive(buffer);
+    }
+
+    /**
+     * @return size of the socket receive buffer given by the system
+     * @throws IOException
+     */
+    public int getReceiveBufferSize() throws IOException {
+        return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    }
+
+    public void close() throws IOException {
+        channel.close();
     }
-}
+}
\ No newline at end of file
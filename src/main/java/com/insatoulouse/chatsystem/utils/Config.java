@@ -33,6 +33,43 @@ import java.util.Properties;
 public class Config {
 
     public static final String CONFIG_PORT = "port";
+    public static final String CONFIG_INVOKER_THREADS = "invoker.%s.threads";
+    public static final String CONFIG_INVOKER_QUEUE = "invoker.%s.queue";
+    public static final String CONFIG_TCP_BACKLOG = "tcp.backlog";
+    public static final String CONFIG_TCP_RECEIVERS = "tcp.receivers";
+    public static final String CONFIG_TCP_BUFFER_SIZE = "tcp.bufferSize";
+    public static final String CONFIG_TCP_READ_TIMEOUT = "tcp.readTimeout";
+    public static final String CONFIG_TCP_CHUNK_SIZE = "tcp.chunkSize";
+    public static final String CONFIG_TCP_RESUME_ATTEMPTS = "tcp.resumeAttempts";
+    public static final String CONFIG_TCP_PARALLEL_THRESHOLD = "tcp.parallelThreshold";
+    public static final String CONFIG_TCP_PARALLEL_STREAMS = "tcp.parallelStreams";
+    public static final String CONFIG_UDP_RECEIVE_BUFFER = "udp.receiveBuffer";
+    public static final String CONFIG_UDP_PIPELINE = "udp.pipeline";
+    public static final String CONFIG_UDP_DECODERS = "udp.decoders";
+    public static final String CONFIG_UDP_BUFFERS = "udp.buffers";
+    public static final String CONFIG_UDP_BUFFER_SIZE = "udp.bufferSize";
+    public static final String CONFIG_UDP_MAX_DATAGRAM_SIZE = "udp.maxDatagramSize";
+    public static final String CONFIG_UDP_REASSEMBLY_MEMORY = "udp.reassemblyMemory";
+    public static final String CONFIG_UDP_REASSEMBLY_TIMEOUT = "udp.reassemblyTimeout";
+    public static final String CONFIG_UDP_BATCH = "udp.batch";
+    public static final String CONFIG_UDP_BATCH_LINGER = "udp.batchLinger";
+    public static final String CONFIG_TIMER_TICK = "timer.tick";
+    public static final String CONFIG_TIMER_SIZE = "timer.size";
+    public static final String CONFIG_RELIABLE_RTO = "reliable.rto";
+    public static final String CONFIG_RELIABLE_MIN_RTO = "reliable.minRto";
+    public static final String CONFIG_RELIABLE_MAX_RTO = "reliable.maxRto";
+    public static final String CONFIG_RELIABLE_RETRIES = "reliable.retries";
+    public static final String CONFIG_RELIABLE_WINDOW = "reliable.window";
+    public static final String CONFIG_RELIABLE_GAP_TIMEOUT = "reliable.gapTimeout";
+    public static final String CONFIG_RELIABLE_ACK_DELAY = "reliable.ackDelay";
+    public static final String CONFIG_RELIABLE_ACK_EVERY = "reliable.ackEvery";
+    public static final String CONFIG_HISTORY_MEMORY = "history.memory";
+    public static final String CONFIG_HISTORY_PAGE_SIZE = "history.pageSize";
+    public static final String CONFIG_HISTORY_CACHED_PAGES = "history.cachedPages";
+    public static final String CONFIG_HISTORY_DIR = "history.dir";
+    public static final String CONFIG_HISTORY_SEGMENT_SIZE = "history.segmentSize";
+    public static final String CONFIG_HISTORY_SEGMENTS = "history.segments";
+    public static final String CONFIG_HISTORY_SYNC_INTERVAL = "history.syncInterval";
     private static final String FILE_CONFIG = "/config.properties";
     private static final Logger logger = LogManager.getLogger(Config.class.getName());
     private static Config instance = null;
@@ -68,10 +105,27 @@ public class Config {
     public String getProperties(String name) throws TechnicalException {
         String propertie = properties.getProperty(name);
         if (propertie == null) {
-            logger.error("Property not found : " + Config.CONFIG_PORT);
-            throw new TechnicalException("Property not found : " + Config.CONFIG_PORT);
+            logger.error("Property not found : " + name);
+            throw new TechnicalException("Property not found : " + name);
         }
         return propertie;
     }
 
+    /**
+     * Get integer properties corresponding with key
+     *
+     * @param name key
+     * @return properties as int
+     * @throws TechnicalException
+     */
+    public int getIntProperties(String name) throws TechnicalException {
+        String propertie = getProperties(name);
+        try {
+            return Integer.parseInt(propertie.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Property is not a number : " + name, e);
+            throw new TechnicalException("Property is not a number : " + name, e);
+        }
+    }
+
 }
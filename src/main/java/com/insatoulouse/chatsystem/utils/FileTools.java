@@ -18,9 +18,11 @@
 
 package com.insatoulouse.chatsystem.utils;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 /**
  * File tools class
@@ -38,8 +40,38 @@ public class FileTools {
         return tmppath + "/" + filename.replace("/", "").replace("\\", "");
     }
 
-    public static OutputStream getTempOutputStream(String filename) throws FileNotFoundException {
-        return new FileOutputStream(filename);
+    /**
+     * Get a new (truncated) file channel to write a received file
+     *
+     * @param filename absolute path of file
+     * @return file channel
+     * @throws FileNotFoundException
+     */
+    public static FileChannel getTempFileChannel(String filename) throws FileNotFoundException {
+        return new FileOutputStream(filename).getChannel();
+    }
+
+    /**
+     * Get partial file of a resumable transfer
+     * Name contains the fingerprint, so a different file with the same name is never resumed.
+     *
+     * @param filename    final absolute path
+     * @param fingerprint fingerprint of the remote file
+     * @return partial file
+     */
+    public static File getPartFile(String filename, long fingerprint) {
+        return new File(filename + "." + Long.toHexString(fingerprint) + ".part");
+    }
+
+    /**
+     * Open a file channel without truncating the file
+     *
+     * @param f file
+     * @return read/write file channel
+     * @throws FileNotFoundException
+     */
+    public static FileChannel openFileChannel(File f) throws FileNotFoundException {
+        return new RandomAccessFile(f, "rw").getChannel();
     }
 
 }
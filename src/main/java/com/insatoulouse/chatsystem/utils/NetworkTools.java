@@ -20,11 +20,12 @@ package com.insatoulouse.chatsystem.utils;
 
 import com.insatoulouse.chatsystem.exception.TechnicalException;
 
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.*;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Enumeration;
 
@@ -34,25 +35,21 @@ import java.util.Enumeration;
 public class NetworkTools {
 
     /**
-     * Get string of datagramPacket
-     *
-     * @param packet packet
-     * @return string
+     * Largest payload of an UDP datagram
      */
-    public static String getString(DatagramPacket packet) {
-        return new String(packet.getData(), packet.getOffset(), packet.getLength());
-    }
+    public static final int MAX_DATAGRAM_SIZE = 65507;
 
     /**
-     * Get datagram packet from data string and an inetAdress
+     * Get datagram packet from data buffer and an inetAdress
      *
-     * @param data data receiving
+     * @param data remaining bytes to send (read mode), copied in the packet
      * @param addr address ip corresponding
      * @return datagram packet
      * @throws TechnicalException
      */
-    public static DatagramPacket getDatagramPacket(String data, InetAddress addr) throws TechnicalException {
-        byte[] bytes = data.getBytes(Charset.defaultCharset());
+    public static DatagramPacket getDatagramPacket(ByteBuffer data, InetAddress addr) throws TechnicalException {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
         DatagramPacket dp = new DatagramPacket(bytes, bytes.length);
         dp.setAddress(addr);
         dp.setPort(NetworkTools.getPort());
@@ -87,15 +84,31 @@ public class NetworkTools {
     }
 
     /**
-     * Get DataInputStream from socket
+     * Read from channel until buffer is full
+     *
+     * @param channel channel to read
+     * @param buffer  buffer to fill (write mode)
+     * @throws IOException when channel is closed before
+     */
+    public static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * Write all remaining bytes of buffer on channel
      *
-     * @param s soket
-     * @return DataInputStream
+     * @param channel channel to write
+     * @param buffer  buffer to send (read mode)
      * @throws IOException
      */
-    public static DataInputStream getDataInputStreamFromSocket(Socket s) throws IOException {
-        InputStream in = s.getInputStream();
-        return new DataInputStream(in);
+    public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
     }
 
     public static Integer getPort() throws TechnicalException {
@@ -0,0 +1,255 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TimerWheel class
+ * Hashed timer wheel : one thread and O(1) schedule/cancel for a large number of short timeouts.
+ * Timeouts are rounded up to the tick, tasks are run on the wheel thread and must be short.
+ */
+public class TimerWheel {
+
+    private static final Logger l = LogManager.getLogger(TimerWheel.class.getName());
+
+    private final long tickNanos;
+    private final int mask;
+    private final Bucket[] wheel;
+
+    /**
+     * Timeouts added or cancelled since last tick, moved in the wheel by the wheel thread only
+     */
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+    private final Thread worker;
+    private volatile boolean running = true;
+    private final long startTime;
+    private long tick = 0;
+
+    /**
+     * Create a timer wheel
+     *
+     * @param name       name of the thread
+     * @param tickMillis duration of a tick (ms)
+     * @param size       number of buckets, rounded up to a power of 2
+     */
+    public TimerWheel(String name, long tickMillis, int size) {
+        if (tickMillis <= 0 || size <= 0) {
+            throw new IllegalArgumentException("Bad timer wheel : tick=" + tickMillis + " size=" + size);
+        }
+        int n = Integer.highestOneBit(size);
+        if (n < size) {
+            n <<= 1;
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.mask = n - 1;
+        this.wheel = new Bucket[n];
+        for (int i = 0; i < n; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TimerWheel.this.run();
+            }
+        }, name);
+        this.worker.setDaemon(true);
+    }
+
+    public void start() {
+        worker.start();
+    }
+
+    /**
+     * Schedule a task
+     *
+     * @param task        task to run on the wheel thread
+     * @param delayMillis delay (ms)
+     * @return timeout, to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout t = new Timeout(this, task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+        added.add(t);
+        return t;
+    }
+
+    /**
+     * Stop the wheel, pending tasks are never run
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        l.trace("Start TimerWheel");
+        while (running) {
+            long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            removeCancelled();
+            transferAdded();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+        l.trace("Stop TimerWheel");
+    }
+
+    private void transferAdded() {
+        Timeout t;
+        while ((t = added.poll()) != null) {
+            if (t.state.get() != Timeout.WAITING) {
+                continue;
+            }
+            long ticks = Math.max(t.deadline / tickNanos, tick);
+            t.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(t);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    /**
+     * Scheduled task
+     */
+    public static class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final TimerWheel timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private long rounds;
+
+        /**
+         * Links in the bucket, used by the wheel thread only
+         */
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(TimerWheel timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task
+         *
+         * @return false if task is already run or cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (state.compareAndSet(WAITING, EXPIRED)) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    l.error("Timer task failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        void remove(Timeout t) {
+            if (t.prev != null) {
+                t.prev.next = t.next;
+            } else {
+                head = t.next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            } else {
+                tail = t.prev;
+            }
+            t.next = t.prev = null;
+            t.bucket = null;
+        }
+
+        void expire() {
+            Timeout t = head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.rounds <= 0) {
+                    remove(t);
+                    t.expire();
+                } else {
+                    t.rounds--;
+                }
+                t = next;
+            }
+        }
+    }
+}
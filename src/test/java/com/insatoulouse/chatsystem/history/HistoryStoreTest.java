@@ -0,0 +1,228 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.history;
+
+import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.model.FileNetwork;
+import com.insatoulouse.chatsystem.model.MessageArchive;
+import com.insatoulouse.chatsystem.model.MessageHistory;
+import com.insatoulouse.chatsystem.model.MessageNetwork;
+import com.insatoulouse.chatsystem.model.RemoteUser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class of persistent conversation logs
+ */
+public class HistoryStoreTest {
+
+    private final RemoteUser user = new RemoteUser("to/to", InetAddress.getLoopbackAddress());
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("history", "");
+        assertTrue(dir.delete());
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void testAppendAndReopen() throws TechnicalException {
+        HistoryStore store = new HistoryStore(dir, 4096, 4, 10);
+        MessageArchive log = store.open(user.getName());
+        assertSame(log, store.open(user.getName()));
+        assertEquals(0, log.size());
+        assertFalse("Nothing written before first message", dir.exists());
+        for (int i = 0; i < 10; i++) {
+            log.append(new MessageNetwork(user, "m" + i));
+        }
+        assertEquals(10, log.size());
+        List<MessageNetwork> list = log.read(2, 3, user);
+        assertEquals("m2", list.get(0).getMessage());
+        assertEquals("m4", list.get(2).getMessage());
+        store.close();
+
+        store = new HistoryStore(dir, 4096, 4, 10);
+        log = store.open(user.getName());
+        assertEquals(10, log.size());
+        assertEquals("m9", log.read(9, 1, user).get(0).getMessage());
+        log.append(new MessageNetwork(user, "m10"));
+        assertEquals("m10", log.read(10, 1, user).get(0).getMessage());
+        store.close();
+    }
+
+    @Test
+    public void testRolloverAndRetention() throws TechnicalException {
+        HistoryStore store = new HistoryStore(dir, 256, 3, 10);
+        MessageArchive log = store.open(user.getName());
+        for (int i = 0; i < 200; i++) {
+            log.append(new MessageNetwork(user, "message " + i));
+        }
+        assertEquals(200, log.size());
+        assertEquals("message 199", log.read(199, 1, user).get(0).getMessage());
+        try {
+            log.read(0, 1, user);
+            fail("Oldest segments must be deleted");
+        } catch (TechnicalException ignored) {
+        }
+        store.close();
+
+        store = new HistoryStore(dir, 256, 3, 10);
+        log = store.open(user.getName());
+        int size = log.size();
+        assertTrue(size > 0 && size < 200);
+        List<MessageNetwork> list = log.read(0, size, user);
+        assertEquals("message " + (200 - size), list.get(0).getMessage());
+        assertEquals("message 199", list.get(size - 1).getMessage());
+        store.close();
+    }
+
+    @Test
+    public void testOversizedMessageStartingSegment() throws TechnicalException {
+        HistoryStore store = new HistoryStore(dir, 256, 4, 10);
+        MessageArchive log = store.open(user.getName());
+        log.append(new MessageNetwork(user, "a"));
+        log.append(new MessageNetwork(user, new String(new char[300]).replace('\0', 'x')));
+        store.close();
+
+        store = new HistoryStore(dir, 256, 4, 10);
+        log = store.open(user.getName());
+        assertEquals(2, log.size());
+        log.append(new MessageNetwork(user, "b"));
+        assertEquals("b", log.read(2, 1, user).get(0).getMessage());
+        store.close();
+    }
+
+    @Test
+    public void testIndexGrowth() throws TechnicalException {
+        HistoryStore store = new HistoryStore(dir, 1 << 20, 4, 10);
+        MessageArchive log = store.open(user.getName());
+        for (int i = 0; i < 3000; i++) {
+            log.append(new MessageNetwork(user, "m" + i));
+        }
+        assertEquals("m2999", log.read(2999, 1, user).get(0).getMessage());
+        store.close();
+
+        store = new HistoryStore(dir, 1 << 20, 4, 10);
+        log = store.open(user.getName());
+        assertEquals(3000, log.size());
+        assertEquals("m1500", log.read(1500, 1, user).get(0).getMessage());
+        store.close();
+    }
+
+    @Test
+    public void testHistoryWithLog() throws TechnicalException {
+        HistoryStore store = new HistoryStore(dir, 4096, 4, 10);
+        MessageHistory h = new MessageHistory(user, 2, 2, 1);
+        assertTrue(h.setArchive(store.open(user.getName())));
+        for (int i = 0; i < 5; i++) {
+            h.add(new MessageNetwork(user, "m" + i));
+        }
+        h.close();
+        store.close();
+
+        store = new HistoryStore(dir, 4096, 4, 10);
+        h = new MessageHistory(user, 2, 2, 1);
+        assertTrue(h.setArchive(store.open(user.getName())));
+        h.add(new MessageNetwork(user, "m5"));
+        assertEquals(6, h.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals("m" + i, h.get(i).getMessage());
+        }
+        store.close();
+    }
+
+    @Test
+    public void testHistoryWrittenWhenAdded() throws TechnicalException {
+        HistoryStore store = new HistoryStore(dir, 4096, 4, 10);
+        MessageHistory h = new MessageHistory(user, 10, 2, 1);
+        assertTrue(h.setArchive(store.open(user.getName())));
+        for (int i = 0; i < 3; i++) {
+            h.add(new MessageNetwork(user, "m" + i));
+        }
+        store.sync();
+
+        HistoryStore other = new HistoryStore(dir, 4096, 4, 10);
+        MessageArchive log = other.open(user.getName());
+        assertEquals(3, log.size());
+        assertEquals("m2", log.read(2, 1, user).get(0).getMessage());
+        other.close();
+        store.close();
+    }
+
+    @Test
+    public void testMessagesBuiltAfterArchive() throws TechnicalException {
+        HistoryStore store = new HistoryStore(dir, 4096, 4, 10);
+        RemoteUser u = new RemoteUser("ti/ti", InetAddress.getLoopbackAddress());
+        assertTrue(u.getHistory().setArchive(store.open(u.getName())));
+        new MessageNetwork(u, "hello");
+        new FileNetwork(MessageNetwork.OUT, u, new File(dir, "file.txt"));
+        u.getHistory().close();
+        store.close();
+
+        store = new HistoryStore(dir, 4096, 4, 10);
+        List<MessageNetwork> list = store.open(u.getName()).read(0, 2, u);
+        assertEquals("hello", list.get(0).getMessage());
+        assertEquals("Envoi du fichier file.txt", list.get(1).getMessage());
+        assertEquals(new File(dir, "file.txt").getAbsolutePath(), ((FileNetwork) list.get(1)).getFile().getAbsolutePath());
+        store.close();
+    }
+
+    @Test
+    public void testStateUpdate() throws TechnicalException {
+        HistoryStore store = new HistoryStore(dir, 4096, 4, 10);
+        MessageArchive log = store.open(user.getName());
+        MessageNetwork out = new MessageNetwork(MessageNetwork.OUT, user, "sent");
+        out.setState(MessageNetwork.State.PENDING);
+        log.append(out);
+        log.append(new MessageNetwork(user, "m"));
+        log.setState(0, MessageNetwork.State.FAILED);
+        assertEquals(MessageNetwork.State.FAILED, log.read(0, 1, user).get(0).getState());
+        store.close();
+
+        store = new HistoryStore(dir, 4096, 4, 10);
+        log = store.open(user.getName());
+        List<MessageNetwork> list = log.read(0, 2, user);
+        assertEquals(MessageNetwork.State.FAILED, list.get(0).getState());
+        assertEquals("sent", list.get(0).getMessage());
+        assertEquals("m", list.get(1).getMessage());
+        store.close();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
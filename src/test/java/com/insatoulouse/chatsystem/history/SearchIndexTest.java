@@ -0,0 +1,105 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.history;
+
+import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.model.MessageNetwork;
+import com.insatoulouse.chatsystem.model.RemoteUser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class of the search index
+ */
+public class SearchIndexTest {
+
+    private final RemoteUser user = new RemoteUser("toto", InetAddress.getLoopbackAddress());
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("search", "");
+        assertTrue(dir.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testTokenize() {
+        assertEquals(Arrays.asList("ete", "a", "l", "ecole", "42"), SearchIndex.tokenize("Été, à l'École : 42 !"));
+    }
+
+    @Test
+    public void testSearch() throws TechnicalException {
+        SearchIndex index = new SearchIndex(dir);
+        index.add("toto", new MessageNetwork(user, "Rendez-vous demain midi"));
+        index.add("toto", new MessageNetwork(MessageNetwork.OUT, user, "Demain je ne peux pas"));
+        index.add("tata", new MessageNetwork(user, "midi c'est parfait"));
+        index.close();
+
+        index = new SearchIndex(dir);
+        List<SearchResult> results = index.search("DEMAIN", 10);
+        assertEquals(2, results.size());
+        assertEquals("Demain je ne peux pas", results.get(0).getMessage());
+        assertEquals(MessageNetwork.OUT, results.get(0).getType());
+        results = index.search("midi demain", 10);
+        assertEquals(1, results.size());
+        assertEquals("toto", results.get(0).getUserName());
+        assertTrue(index.search("soir", 10).isEmpty());
+        assertTrue(index.search(" ", 10).isEmpty());
+        index.close();
+    }
+
+    @Test
+    public void testReopenAfterSnapshot() throws TechnicalException {
+        SearchIndex index = new SearchIndex(dir);
+        for (int i = 0; i < 12000; i++) {
+            index.add("toto", new MessageNetwork(user, "message " + i + (i % 1000 == 0 ? " rare" : "")));
+        }
+        index.close();
+
+        index = new SearchIndex(dir);
+        assertEquals(5, index.search("message", 5).size());
+        List<SearchResult> results = index.search("rare", 100);
+        assertEquals(12, results.size());
+        assertEquals("message 11000 rare", results.get(0).getMessage());
+        assertEquals("message 0 rare", results.get(11).getMessage());
+        results = index.search("rare message 5000", 100);
+        assertEquals(1, results.size());
+        assertEquals("message 5000 rare", results.get(0).getMessage());
+        index.close();
+    }
+}
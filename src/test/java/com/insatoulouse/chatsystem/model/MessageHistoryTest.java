@@ -0,0 +1,108 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.model;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class of bounded message history
+ */
+public class MessageHistoryTest {
+
+    private final RemoteUser user = new RemoteUser("toto", InetAddress.getLoopbackAddress());
+
+    @Test
+    public void testInMemory() {
+        MessageHistory h = new MessageHistory(user, 4, 2, 1);
+        assertNull(h.getLast());
+        h.add(new MessageNetwork(user, "a"));
+        h.add(new MessageNetwork(user, "b"));
+        assertEquals(2, h.size());
+        assertEquals("a", h.get(0).getMessage());
+        assertEquals("b", h.getLast().getMessage());
+        h.close();
+    }
+
+    @Test
+    public void testSpillAndReadBack() {
+        MessageHistory h = new MessageHistory(user, 3, 2, 1);
+        MessageNetwork out = new MessageNetwork(MessageNetwork.OUT, user, "sent");
+        out.setState(MessageNetwork.State.FAILED);
+        h.add(out);
+        h.add(new FileNetwork(MessageNetwork.IN, user, new File("f.txt")));
+        for (int i = 0; i < 20; i++) {
+            h.add(new MessageNetwork(user, "m" + i));
+        }
+        assertEquals(22, h.size());
+        List<MessageNetwork> list = h.asList();
+        assertEquals("sent", list.get(0).getMessage());
+        assertEquals(MessageNetwork.OUT, list.get(0).getType());
+        assertEquals(MessageNetwork.State.FAILED, list.get(0).getState());
+        assertSame(user, list.get(0).getUser());
+        assertTrue(list.get(1) instanceof FileNetwork);
+        assertEquals("f.txt", ((FileNetwork) list.get(1)).getFile().getPath());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("m" + i, list.get(i + 2).getMessage());
+        }
+        assertEquals("m19", h.getLast().getMessage());
+        h.close();
+    }
+
+    @Test
+    public void testStateOfArchivedMessage() {
+        RemoteUser u = new RemoteUser("titi", InetAddress.getLoopbackAddress());
+        MessageHistory h = u.getHistory();
+        MessageNetwork out = new MessageNetwork(MessageNetwork.OUT, u, "sent");
+        out.setState(MessageNetwork.State.PENDING);
+        for (int i = 0; i < 1000; i++) {
+            new MessageNetwork(u, "m" + i);
+        }
+        assertEquals(MessageNetwork.State.PENDING, h.get(0).getState());
+        out.setState(MessageNetwork.State.DELIVERED);
+        assertEquals(MessageNetwork.State.DELIVERED, h.get(0).getState());
+        for (int i = 0; i < h.size(); i += 10) {
+            h.get(i);
+        }
+        assertEquals(MessageNetwork.State.DELIVERED, h.get(0).getState());
+        h.close();
+    }
+
+    @Test
+    public void testClosed() {
+        MessageHistory h = new MessageHistory(user, 1, 2, 1);
+        h.add(new MessageNetwork(user, "a"));
+        h.add(new MessageNetwork(user, "b"));
+        h.close();
+        h.add(new MessageNetwork(user, "c"));
+        assertEquals(3, h.size());
+        assertEquals(MessageNetwork.State.FAILED, h.get(0).getState());
+        assertEquals("c", h.get(2).getMessage());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testOutOfBounds() {
+        new MessageHistory(user, 2, 2, 1).get(0);
+    }
+}
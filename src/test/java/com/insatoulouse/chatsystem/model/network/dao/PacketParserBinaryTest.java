@@ -0,0 +1,162 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.model.network.dao;
+
+import com.insatoulouse.chatsystem.exception.LogicalException;
+import com.insatoulouse.chatsystem.exception.PacketException;
+import com.insatoulouse.chatsystem.model.network.*;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class of binary packet parser
+ */
+public class PacketParserBinaryTest {
+    private final PacketParser parser = AbstractFactory.getFactory(AbstractFactory.Type.BINARY).getPacketParser();
+
+    /*
+        Test read packet
+     */
+    @Test(expected = PacketException.class)
+    public void testReadBadMagic() throws PacketException {
+        parser.read("{ \"type\":\"goodbye\" }");
+    }
+
+    @Test(expected = PacketException.class)
+    public void testReadBadType() throws PacketException {
+        parser.read(raw(0xC5, 42));
+    }
+
+    @Test(expected = PacketException.class)
+    public void testReadTruncatedPacket() throws PacketException {
+        parser.read(raw(0xC5, 3, 1, 10, 'a'));
+    }
+
+    @Test(expected = PacketException.class)
+    public void testReadTrailingBytes() throws PacketException {
+        parser.read(raw(0xC5, 5, 0));
+    }
+
+    @Test(expected = PacketException.class)
+    public void testReadEmptyUserName() throws PacketException {
+        parser.read(raw(0xC5, 1, 0, 0));
+    }
+
+    /*
+        Test read / write
+     */
+    @Test
+    public void testHello() throws LogicalException, PacketException {
+        Hello hello = new Hello("toto");
+        hello.setCapabilities(Arrays.asList(Capabilities.RESUME, Capabilities.BINARY));
+        hello.setFirstNumber(1 << 29);
+        Packet p = parser.read(parser.write(hello));
+        assertTrue(p instanceof Hello);
+        assertEquals("toto", ((Hello) p).getUserName());
+        assertEquals(hello.getCapabilities(), ((Hello) p).getCapabilities());
+        assertEquals(Integer.valueOf(1 << 29), ((Hello) p).getFirstNumber());
+    }
+
+    @Test
+    public void testHelloAckWithoutCapabilities() throws LogicalException, PacketException {
+        Packet p = parser.read(parser.write(new HelloAck("toto")));
+        assertTrue(p instanceof HelloAck);
+        assertEquals("toto", ((HelloAck) p).getUserName());
+        assertNull(((HelloAck) p).getCapabilities());
+        assertNull(((HelloAck) p).getFirstNumber());
+    }
+
+    @Test
+    public void testMessage() throws LogicalException, PacketException {
+        Packet p = parser.read(parser.write(new Message(300, "héhé ✓")));
+        assertTrue(p instanceof Message);
+        assertEquals(Integer.valueOf(300), ((Message) p).getMessageNumber());
+        assertEquals("héhé ✓", ((Message) p).getMessageData());
+    }
+
+    @Test
+    public void testMessageAck() throws LogicalException, PacketException {
+        Packet p = parser.read(parser.write(new MessageAck(Integer.MAX_VALUE)));
+        assertTrue(p instanceof MessageAck);
+        assertEquals(Integer.valueOf(Integer.MAX_VALUE), ((MessageAck) p).getMessageNumber());
+        assertNull(((MessageAck) p).getSack());
+    }
+
+    @Test
+    public void testMessageAckWithSack() throws LogicalException, PacketException {
+        MessageAck ack = new MessageAck(70);
+        ack.setSack(0x8000000000000005L);
+        Packet p = parser.read(parser.write(ack));
+        assertTrue(p instanceof MessageAck);
+        assertEquals(Integer.valueOf(70), ((MessageAck) p).getMessageNumber());
+        assertEquals(Long.valueOf(0x8000000000000005L), ((MessageAck) p).getSack());
+    }
+
+    @Test
+    public void testMessageWithAck() throws LogicalException, PacketException {
+        Message m = new Message(3, "toto");
+        m.setAck(12);
+        m.setSack(-1L);
+        Packet p = parser.read(parser.write(m));
+        assertTrue(p instanceof Message);
+        assertEquals("toto", ((Message) p).getMessageData());
+        assertEquals(Integer.valueOf(12), ((Message) p).getAck());
+        assertEquals(Long.valueOf(-1L), ((Message) p).getSack());
+    }
+
+    @Test
+    public void testGoodbye() throws PacketException {
+        String data = parser.write(new Goodbye());
+        assertEquals(raw(0xC5, 5), data);
+        assertTrue(parser.read(data) instanceof Goodbye);
+    }
+
+    @Test
+    public void testWriteReadDirectBuffer() throws LogicalException, PacketException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(64);
+        parser.write(new Message(1, "toto"), buf);
+        buf.flip();
+        Packet p = parser.read(buf);
+        assertFalse(buf.hasRemaining());
+        assertEquals("toto", ((Message) p).getMessageData());
+    }
+
+    @Test
+    public void testWriteBufferTooSmall() throws LogicalException {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        try {
+            parser.write(new Message(1, "toto"), buf);
+            fail();
+        } catch (PacketException e) {
+            assertEquals(0, buf.position());
+        }
+    }
+
+    private static String raw(int... bytes) {
+        byte[] b = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            b[i] = (byte) bytes[i];
+        }
+        return new String(b, PacketParserBinary.RAW);
+    }
+}
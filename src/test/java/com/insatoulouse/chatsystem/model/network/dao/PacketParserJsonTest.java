@@ -23,6 +23,10 @@ import com.insatoulouse.chatsystem.exception.PacketException;
 import com.insatoulouse.chatsystem.model.network.*;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
 import static org.junit.Assert.*;
 
 /**
@@ -67,6 +71,13 @@ public class PacketParserJsonTest {
         }
     }
 
+    @Test
+    public void testReadHelloWithCapabilities() throws PacketException {
+        Packet p = parser.read("{ \"type\":\"hello\", \"userName\":\"toto\", \"capabilities\":[\"resume\"]}");
+        assertTrue(p instanceof Hello);
+        assertEquals(Arrays.asList(Capabilities.RESUME), ((Hello) p).getCapabilities());
+    }
+
     @Test(expected = PacketException.class)
     public void testReadBadHelloWithoutUserName() throws PacketException {
         parser.read("{ \"type\":\"hello\"}");
@@ -173,6 +184,14 @@ public class PacketParserJsonTest {
         assertEquals("{\"type\":\"hello\",\"userName\":\"toto\"}", s);
     }
 
+    @Test
+    public void testWriteHelloWithCapabilities() throws LogicalException, PacketException {
+        Hello h = new Hello("toto");
+        h.setCapabilities(Arrays.asList(Capabilities.RESUME));
+        String s = parser.write(h);
+        assertEquals("{\"type\":\"hello\",\"userName\":\"toto\",\"capabilities\":[\"resume\"]}", s);
+    }
+
     /*
         Test write hello ack
      */
@@ -213,4 +232,47 @@ public class PacketParserJsonTest {
         String s = parser.write(new MessageAck(1));
         assertEquals("{\"type\":\"messageAck\",\"messageNumber\":1}", s);
     }
+
+    @Test
+    public void testMessageAckWithSack() throws PacketException, LogicalException {
+        MessageAck ack = new MessageAck(9);
+        ack.setSack(6L);
+        Packet p = parser.read(parser.write(ack));
+        assertTrue(p instanceof MessageAck);
+        assertEquals(Long.valueOf(6L), ((MessageAck) p).getSack());
+    }
+
+    @Test
+    public void testReadMessageWithAck() throws PacketException {
+        Packet p = parser.read("{ \"type\":\"message\", \"messageNumber\":1, \"messageData\":\"toto\", \"ack\":4, \"sack\":1}");
+        assertTrue(p instanceof Message);
+        assertEquals(Integer.valueOf(4), ((Message) p).getAck());
+        assertEquals(Long.valueOf(1L), ((Message) p).getSack());
+    }
+
+    /*
+        Test byte api
+     */
+
+    @Test
+    public void testReadUtf8Bytes() throws PacketException {
+        byte[] data = "  {\"type\":\"message\",\"messageNumber\":1,\"messageData\":\"héhé ✓\"}".getBytes(Charset.forName("UTF-8"));
+        Packet p = parser.read(data, 2, data.length - 2);
+        assertEquals("héhé ✓", ((Message) p).getMessageData());
+    }
+
+    @Test
+    public void testWriteReadDirectBuffer() throws PacketException, LogicalException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(256);
+        parser.write(new Message(7, "héhé ✓"), buf);
+        buf.flip();
+        Packet p = parser.read(buf);
+        assertFalse(buf.hasRemaining());
+        assertEquals("héhé ✓", ((Message) p).getMessageData());
+    }
+
+    @Test(expected = PacketException.class)
+    public void testWriteBufferTooSmall() throws PacketException, LogicalException {
+        parser.write(new Message(1, "toto"), ByteBuffer.allocate(16));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,95 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni;
+
+import com.insatoulouse.chatsystem.exception.PacketException;
+import com.insatoulouse.chatsystem.exception.TechnicalException;
+import com.insatoulouse.chatsystem.utils.TimerWheel;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class of fragmentation and reassembly
+ */
+public class ReassemblerTest {
+
+    private final TimerWheel timer = new TimerWheel("test", 10, 16);
+    private final InetAddress addr = InetAddress.getLoopbackAddress();
+
+    @Test
+    public void testSplitAndReassemble() throws TechnicalException {
+        byte[] data = data(5000);
+        DatagramPacket[] fragments = Fragmenter.split(ByteBuffer.wrap(data), 1, 1400, addr);
+        assertEquals(4, fragments.length);
+        Reassembler r = new Reassembler(timer, 1 << 20, 1000);
+        ByteBuffer result = null;
+        for (int i = fragments.length - 1; i >= 0; i--) {
+            assertNull(result);
+            assertTrue(fragments[i].getLength() <= 1400);
+            result = r.add(addr, wrap(fragments[i]));
+        }
+        assertNotNull(result);
+        assertArrayEquals(data, result.array());
+        assertEquals(0, r.getMemory());
+    }
+
+    @Test
+    public void testDuplicateFragment() throws TechnicalException {
+        DatagramPacket[] fragments = Fragmenter.split(ByteBuffer.wrap(data(3000)), 2, 1400, addr);
+        Reassembler r = new Reassembler(timer, 1 << 20, 1000);
+        assertNull(r.add(addr, wrap(fragments[0])));
+        assertNull(r.add(addr, wrap(fragments[0])));
+        assertNull(r.add(addr, wrap(fragments[1])));
+        assertNotNull(r.add(addr, wrap(fragments[2])));
+    }
+
+    @Test
+    public void testMemoryLimit() throws TechnicalException {
+        DatagramPacket[] fragments = Fragmenter.split(ByteBuffer.wrap(data(3000)), 3, 1400, addr);
+        Reassembler r = new Reassembler(timer, 2000, 1000);
+        assertNull(r.add(addr, wrap(fragments[0])));
+        assertEquals(0, r.getMemory());
+        assertEquals(1, r.getDropped());
+    }
+
+    @Test(expected = PacketException.class)
+    public void testInvalidFragment() throws TechnicalException {
+        ByteBuffer b = ByteBuffer.allocate(Fragmenter.HEADER_SIZE + 10);
+        b.put(Fragmenter.MAGIC).putInt(1).putShort((short) 0).putShort((short) 1).putInt(5).putInt(0);
+        b.position(0);
+        new Reassembler(timer, 1 << 20, 1000).add(addr, b);
+    }
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private static ByteBuffer wrap(DatagramPacket p) {
+        return ByteBuffer.wrap(p.getData(), p.getOffset(), p.getLength());
+    }
+}
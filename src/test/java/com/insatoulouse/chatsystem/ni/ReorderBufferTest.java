@@ -0,0 +1,104 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni;
+
+import com.insatoulouse.chatsystem.exception.LogicalException;
+import com.insatoulouse.chatsystem.model.network.Message;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class of in order delivery
+ */
+public class ReorderBufferTest {
+
+    private final List<Integer> delivered = new ArrayList<Integer>();
+    private final ReorderBuffer buffer = new ReorderBuffer(8, new ReorderBuffer.Delivery() {
+        @Override
+        public void deliver(Message m) {
+            delivered.add(m.getMessageNumber());
+        }
+    });
+
+    @Test
+    public void testInOrder() throws LogicalException {
+        offer(5, 6, 7);
+        assertEquals(Arrays.asList(5, 6, 7), delivered);
+        assertFalse(buffer.hasGap());
+    }
+
+    @Test
+    public void testHoldAfterGap() throws LogicalException {
+        offer(1, 3, 4);
+        assertEquals(Arrays.asList(1), delivered);
+        assertTrue(buffer.hasGap());
+        offer(2);
+        assertEquals(Arrays.asList(1, 2, 3, 4), delivered);
+        assertFalse(buffer.hasGap());
+    }
+
+    @Test
+    public void testFirstMessageReceivedSecond() throws LogicalException {
+        buffer.start(5);
+        offer(6);
+        assertTrue(delivered.isEmpty());
+        assertTrue(buffer.hasGap());
+        offer(5, 7);
+        assertEquals(Arrays.asList(5, 6, 7), delivered);
+        assertFalse(buffer.hasGap());
+    }
+
+    @Test
+    public void testSkipGap() throws LogicalException {
+        offer(1, 3, 4, 6);
+        buffer.skipGap();
+        assertEquals(Arrays.asList(1, 3, 4), delivered);
+        assertTrue(buffer.hasGap());
+        buffer.skipGap();
+        assertEquals(Arrays.asList(1, 3, 4, 6), delivered);
+        offer(2);
+        assertEquals(Arrays.asList(1, 3, 4, 6, 2), delivered);
+    }
+
+    @Test
+    public void testOverflow() throws LogicalException {
+        offer(0, 2, 3, 10);
+        assertEquals(Arrays.asList(0, 2, 3), delivered);
+        assertTrue(buffer.hasGap());
+        offer(20);
+        assertEquals(Arrays.asList(0, 2, 3, 10), delivered);
+    }
+
+    @Test
+    public void testWrap() throws LogicalException {
+        offer(Integer.MAX_VALUE, 1, 0);
+        assertEquals(Arrays.asList(Integer.MAX_VALUE, 0, 1), delivered);
+    }
+
+    private void offer(int... numbers) throws LogicalException {
+        for (int n : numbers) {
+            buffer.offer(new Message(n, "m" + n));
+        }
+    }
+}
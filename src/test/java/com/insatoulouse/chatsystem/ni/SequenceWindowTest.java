@@ -0,0 +1,139 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class of duplicate detection window
+ */
+public class SequenceWindowTest {
+
+    @Test
+    public void testAcceptInOrder() {
+        SequenceWindow w = new SequenceWindow(64);
+        for (int i = 10; i < 200; i++) {
+            assertTrue(w.accept(i));
+        }
+        assertEquals(199, w.getHighest());
+    }
+
+    @Test
+    public void testRejectDuplicate() {
+        SequenceWindow w = new SequenceWindow(64);
+        assertTrue(w.accept(5));
+        assertTrue(w.accept(6));
+        assertFalse(w.accept(5));
+        assertFalse(w.accept(6));
+    }
+
+    @Test
+    public void testAcceptReordered() {
+        SequenceWindow w = new SequenceWindow(64);
+        assertTrue(w.accept(1));
+        assertTrue(w.accept(4));
+        assertTrue(w.accept(3));
+        assertTrue(w.accept(2));
+        assertFalse(w.accept(3));
+        assertFalse(w.contains(5));
+        assertTrue(w.contains(2));
+    }
+
+    @Test
+    public void testRejectTooOld() {
+        SequenceWindow w = new SequenceWindow(64);
+        assertTrue(w.accept(0));
+        assertTrue(w.accept(100));
+        assertFalse(w.accept(20));
+        assertTrue(w.accept(50));
+    }
+
+    @Test
+    public void testJumpClearsWindow() {
+        SequenceWindow w = new SequenceWindow(64);
+        assertTrue(w.accept(3));
+        assertTrue(w.accept(3 + 64));
+        assertFalse(w.contains(3 + 63));
+        assertTrue(w.accept(3 + 63));
+    }
+
+    @Test
+    public void testWrap() {
+        SequenceWindow w = new SequenceWindow(64);
+        assertTrue(w.accept(Integer.MAX_VALUE - 1));
+        assertTrue(w.accept(Integer.MAX_VALUE));
+        assertTrue(w.accept(0));
+        assertTrue(w.accept(1));
+        assertFalse(w.accept(Integer.MAX_VALUE));
+        assertEquals(1, w.getHighest());
+        assertEquals(1, SequenceWindow.distance(0, Integer.MAX_VALUE));
+        assertEquals(0, SequenceWindow.next(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testSack() {
+        SequenceWindow w = new SequenceWindow(1024);
+        assertEquals(0L, w.getSack());
+        assertTrue(w.accept(10));
+        assertTrue(w.accept(12));
+        assertTrue(w.accept(13));
+        assertEquals(13, w.getHighest());
+        assertEquals(10, w.getContiguous());
+        assertEquals(0x3L, w.getSack());
+        assertTrue(w.accept(11));
+        assertEquals(13, w.getContiguous());
+        assertEquals(0L, w.getSack());
+        assertTrue(w.accept(15 + 63));
+        assertEquals(1L << 63, w.getSack());
+    }
+
+    @Test
+    public void testStart() {
+        SequenceWindow w = new SequenceWindow(64);
+        w.start(100);
+        assertTrue(w.accept(101));
+        assertEquals(99, w.getContiguous());
+        assertEquals(0x1L, w.getSack());
+        assertTrue(w.accept(100));
+        assertEquals(101, w.getContiguous());
+        assertFalse(w.accept(99));
+    }
+
+    @Test
+    public void testContiguousOutOfWindow() {
+        SequenceWindow w = new SequenceWindow(64);
+        assertTrue(w.accept(0));
+        assertTrue(w.accept(100));
+        assertEquals(36, w.getContiguous());
+        assertTrue(w.accept(37));
+        assertEquals(37, w.getContiguous());
+    }
+
+    @Test
+    public void testSackWrap() {
+        SequenceWindow w = new SequenceWindow(1024);
+        assertTrue(w.accept(Integer.MAX_VALUE));
+        assertTrue(w.accept(1));
+        assertEquals(0x1L, w.getSack());
+        assertTrue(w.accept(0));
+        assertEquals(1, w.getContiguous());
+    }
+}
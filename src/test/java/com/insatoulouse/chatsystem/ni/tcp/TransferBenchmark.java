@@ -0,0 +1,89 @@
+/*
+ * Chat System - P2P
+ *     Copyright (C) 2014 LIVET BOUTOILLE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.insatoulouse.chatsystem.ni.tcp;
+
+import com.insatoulouse.chatsystem.Controller;
+import com.insatoulouse.chatsystem.ni.ChatNI;
+import com.insatoulouse.chatsystem.utils.Config;
+import com.insatoulouse.chatsystem.utils.FileTools;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.Random;
+
+/**
+ * Loopback benchmark of file transfers : one stream against tcp.parallelStreams streams.
+ * Not a unit test, run it by hand :
+ * <pre>java com.insatoulouse.chatsystem.ni.tcp.TransferBenchmark [size in MB] [rounds]</pre>
+ */
+public class TransferBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 512) << 20;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        Config config = Config.getInstance();
+        if (size < config.getIntProperties(Config.CONFIG_TCP_PARALLEL_THRESHOLD)) {
+            System.out.println("Files smaller than tcp.parallelThreshold are sent on one stream");
+        }
+
+        // received files are written in java.io.tmpdir, keep the source out of it
+        File dir = File.createTempFile("benchmark", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IllegalStateException("Impossible de créer " + dir);
+        }
+        File source = new File(dir, "benchmark.bin");
+        RandomAccessFile raf = new RandomAccessFile(source, "rw");
+        try {
+            byte[] block = new byte[1 << 20];
+            new Random(1).nextBytes(block);
+            for (long written = 0; written < size; written += block.length) {
+                raf.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } finally {
+            raf.close();
+        }
+        File target = new File(FileTools.getTempFilename(source.getName()));
+
+        TcpListener listener = new TcpListener(new ChatNI(new Controller()));
+        listener.start();
+        try {
+            InetAddress addr = InetAddress.getLoopbackAddress();
+            TcpSender sender = new TcpSender();
+            for (int i = 0; i < rounds; i++) {
+                for (boolean parallel : new boolean[]{false, true}) {
+                    long start = System.nanoTime();
+                    sender.sendResumable(source, addr, parallel);
+                    long nanos = System.nanoTime() - start;
+                    if (target.length() != size) {
+                        throw new IllegalStateException("Received " + target.length() + " bytes of " + size);
+                    }
+                    System.out.printf("%-8s %6d ms %8.1f MB/s%n", parallel ? "parallel" : "single",
+                            nanos / 1000000, size * 1e9 / nanos / (1 << 20));
+                    target.delete();
+                }
+            }
+        } finally {
+            listener.close();
+            source.delete();
+            dir.delete();
+            target.delete();
+        }
+    }
+}